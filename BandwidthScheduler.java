@@ -0,0 +1,301 @@
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+
+// Ordonnanceur de bande passante partagé par le serveur principal et les serveurs secondaires.
+// Chaque transfert ouvre un flux (classe de trafic, client) et lui déclare les octets de chaque tranche
+// envoyée ou reçue. Trois niveaux de seaux à jetons, en octets par seconde (0 = illimité) :
+//  - par client : la somme des connexions d'un client ne dépasse pas qos.client ;
+//  - par classe de trafic (foreground, replication, rebalance) ;
+//  - global, pour le lien : quand il est saturé, les tranches en attente passent dans l'ordre de leur
+//    étiquette de fin virtuelle (file équitable pondérée). Le poids de la classe fixe la part, et les
+//    connexions d'un même client dans une même classe se partagent une seule part.
+// Les seaux fonctionnent à crédit : la tranche est déjà passée, c'est la suivante qui attend le remboursement.
+// Les limites sont lues dans les propriétés qos.* au démarrage et modifiables à chaud par la commande SET_QOS.
+public class BandwidthScheduler {
+
+    enum TrafficClass {
+        FOREGROUND(8), REPLICATION(2), REBALANCE(1);
+
+        final int defaultWeight;
+
+        TrafficClass(int defaultWeight) {
+            this.defaultWeight = defaultWeight;
+        }
+
+        String label() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+
+        static TrafficClass fromLabel(String label) {
+            return valueOf(label.toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final TrafficClass[] CLASSES = TrafficClass.values();
+    private static final TokenBucket link = new TokenBucket(Long.getLong("qos.total", 0));
+    private static final TokenBucket[] classBuckets = new TokenBucket[CLASSES.length];
+    private static final long[] weights = new long[CLASSES.length];
+    private static volatile long clientRate = Long.getLong("qos.client", 0);
+    private static final Map<String, Flow> flows = new HashMap<>(); // Parts équitables actives, par classe et client
+    private static final Map<String, ClientShare> clients = new HashMap<>(); // Seaux par client actif
+    private static final PriorityQueue<Request> waiting = new PriorityQueue<>(); // Tranches en attente du lien
+    private static double virtualTime; // Étiquette de la dernière tranche servie par le lien
+    private static long sequence;
+    private static final Metrics.Counter[] bytes = new Metrics.Counter[CLASSES.length];
+    private static final Metrics.Histogram[] waits = new Metrics.Histogram[CLASSES.length];
+    private static final Metrics.Gauge[] activeStreams = new Metrics.Gauge[CLASSES.length];
+
+    static {
+        for (TrafficClass c : CLASSES) {
+            int i = c.ordinal();
+            classBuckets[i] = new TokenBucket(Long.getLong("qos." + c.label(), 0));
+            weights[i] = Math.max(1, Long.getLong("qos.weight." + c.label(), c.defaultWeight));
+            bytes[i] = Metrics.counter("pftp_qos_bytes_total", "class", c.label());
+            waits[i] = Metrics.histogram("pftp_qos_wait_seconds", "class", c.label());
+            activeStreams[i] = Metrics.gauge("pftp_qos_active_streams", "class", c.label());
+        }
+        publishLimits();
+    }
+
+    private BandwidthScheduler() {
+    }
+
+    // Ouvre un flux pour un transfert ; à fermer (try-with-resources) à la fin du transfert
+    static Stream open(TrafficClass trafficClass, String client) {
+        synchronized (flows) {
+            String key = trafficClass.label() + "|" + client;
+            Flow flow = flows.computeIfAbsent(key, k -> new Flow(key, trafficClass));
+            flow.streams++;
+            ClientShare share = clients.computeIfAbsent(client, k -> new ClientShare(k, clientRate));
+            share.streams++;
+            activeStreams[trafficClass.ordinal()].inc();
+            return new Stream(flow, share);
+        }
+    }
+
+    // Modifie une limite ; clés : total, client, <classe> (octets/s, 0 = illimité) ou weight.<classe>
+    static synchronized String set(String key, long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Valeur négative pour " + key);
+        }
+        if ("total".equals(key)) {
+            link.setRate(value);
+            synchronized (link) {
+                link.notifyAll(); // Les tranches en attente réévaluent leur délai
+            }
+        } else if ("client".equals(key)) {
+            clientRate = value;
+            synchronized (flows) {
+                for (ClientShare share : clients.values()) {
+                    share.bucket.setRate(value);
+                }
+            }
+        } else if (key.startsWith("weight.")) {
+            TrafficClass c = parseClass(key.substring("weight.".length()));
+            synchronized (link) { // Lu par acquireLink sous ce moniteur
+                weights[c.ordinal()] = Math.max(1, value);
+                link.notifyAll();
+            }
+        } else {
+            classBuckets[parseClass(key).ordinal()].setRate(value);
+        }
+        publishLimits();
+        return describe();
+    }
+
+    static String describe() {
+        StringBuilder sb = new StringBuilder("total=").append(link.rate()).append(" client=").append(clientRate);
+        for (TrafficClass c : CLASSES) {
+            sb.append(' ').append(c.label()).append('=').append(classBuckets[c.ordinal()].rate())
+              .append(" weight.").append(c.label()).append('=').append(weights[c.ordinal()]);
+        }
+        return sb.toString();
+    }
+
+    private static TrafficClass parseClass(String label) {
+        try {
+            return TrafficClass.fromLabel(label);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Paramètre QoS inconnu : " + label);
+        }
+    }
+
+    private static void publishLimits() {
+        Metrics.gauge("pftp_qos_limit_bytes_per_second", "scope", "total").set(link.rate());
+        Metrics.gauge("pftp_qos_limit_bytes_per_second", "scope", "client").set(clientRate);
+        for (TrafficClass c : CLASSES) {
+            Metrics.gauge("pftp_qos_limit_bytes_per_second", "scope", c.label()).set(classBuckets[c.ordinal()].rate());
+            Metrics.gauge("pftp_qos_weight", "class", c.label()).set(weights[c.ordinal()]);
+        }
+    }
+
+    // Attend le tour de la tranche sur le lien : la plus petite étiquette de fin passe dès que le seau
+    // global n'est plus à découvert
+    private static void acquireLink(Flow flow, long amount) throws InterruptedException {
+        if (link.rate() == 0) {
+            return;
+        }
+        synchronized (link) {
+            double tag = Math.max(virtualTime, flow.finishTag) + (double) amount / weights[flow.trafficClass.ordinal()];
+            flow.finishTag = tag;
+            Request request = new Request(tag, sequence++);
+            waiting.add(request);
+            try {
+                while (true) {
+                    if (waiting.peek() == request) {
+                        long delay = link.delayNanos();
+                        if (delay == 0) {
+                            link.take(amount);
+                            virtualTime = tag;
+                            return;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(link, delay);
+                    } else {
+                        link.wait();
+                    }
+                }
+            } finally {
+                waiting.remove(request);
+                link.notifyAll();
+            }
+        }
+    }
+
+    static class Stream implements LongConsumer, AutoCloseable {
+        private final Flow flow;
+        private final ClientShare share;
+        private boolean closed;
+
+        private Stream(Flow flow, ClientShare share) {
+            this.flow = flow;
+            this.share = share;
+        }
+
+        // Déclare une tranche transférée et bloque tant que ce flux a dépassé sa part
+        @Override
+        public void accept(long amount) {
+            int c = flow.trafficClass.ordinal();
+            long start = System.nanoTime();
+            try {
+                long delay = Math.max(classBuckets[c].take(amount), share.bucket.take(amount));
+                if (delay > 0) {
+                    TimeUnit.NANOSECONDS.sleep(delay);
+                }
+                acquireLink(flow, amount);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            bytes[c].add(amount);
+            Metrics.recordSince(waits[c], start);
+        }
+
+        @Override
+        public void close() {
+            synchronized (flows) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (--flow.streams == 0) {
+                    flows.remove(flow.key);
+                }
+                if (--share.streams == 0) {
+                    clients.remove(share.client);
+                }
+                activeStreams[flow.trafficClass.ordinal()].dec();
+            }
+        }
+    }
+
+    private static class Flow {
+        final String key;
+        final TrafficClass trafficClass;
+        int streams;
+        double finishTag; // Protégé par le verrou de link
+
+        Flow(String key, TrafficClass trafficClass) {
+            this.key = key;
+            this.trafficClass = trafficClass;
+        }
+    }
+
+    private static class ClientShare {
+        final String client;
+        final TokenBucket bucket;
+        int streams;
+
+        ClientShare(String client, long rate) {
+            this.client = client;
+            this.bucket = new TokenBucket(rate);
+        }
+    }
+
+    private static class Request implements Comparable<Request> {
+        final double tag;
+        final long sequence;
+
+        Request(double tag, long sequence) {
+            this.tag = tag;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Request other) {
+            int byTag = Double.compare(tag, other.tag);
+            return byTag != 0 ? byTag : Long.compare(sequence, other.sequence);
+        }
+    }
+
+    // Seau à jetons pouvant passer à découvert ; la réserve est plafonnée à 100 ms de débit (au moins 64 Ko)
+    static class TokenBucket {
+        private long rate;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        TokenBucket(long rate) {
+            this.rate = rate;
+            this.tokens = burst();
+        }
+
+        synchronized long rate() {
+            return rate;
+        }
+
+        synchronized void setRate(long rate) {
+            refill();
+            this.rate = rate;
+            tokens = Math.min(tokens, burst());
+        }
+
+        // Prélève amount octets et renvoie le temps (ns) nécessaire pour rembourser un éventuel découvert
+        synchronized long take(long amount) {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill();
+            tokens -= amount;
+            return delayNanos();
+        }
+
+        synchronized long delayNanos() {
+            if (rate <= 0) {
+                return 0;
+            }
+            refill();
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens * 1_000_000_000.0 / rate);
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            if (rate > 0) {
+                tokens = Math.min(burst(), tokens + (now - last) * (rate / 1_000_000_000.0));
+            }
+            last = now;
+        }
+
+        private double burst() {
+            return Math.max(rate / 10.0, 64 * 1024);
+        }
+    }
+}
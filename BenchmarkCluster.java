@@ -0,0 +1,382 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Générateur de charge sans interface graphique et banc d'essai de cluster.
+// Démarre un ServeurPrincipal et N ServeurSecondaire sur localhost (un processus et un répertoire
+// de travail chacun), puis simule des clients concurrents qui mélangent upload, download, list et delete.
+//
+// Utilisation : java BenchmarkCluster [-secondaries 3] [-clients 16] [-duration 60] [-warmup 5]
+//                                     [-mix upload=30,download=50,list=15,delete=5]
+//                                     [-sizeMedian 262144] [-sizeSigma 1.0] [-sizeMax 67108864]
+//                                     [-seed 1] [-workDir chemin] [-basePort 7000] [-external ip:port]
+public class BenchmarkCluster {
+
+    private static int secondaries = 3;
+    private static int clients = 16;
+    private static int durationSeconds = 60;
+    private static int warmupSeconds = 5;
+    private static String mixSpec = "upload=30,download=50,list=15,delete=5";
+    private static long sizeMedian = 256 * 1024;
+    private static double sizeSigma = 1.0;
+    private static long sizeMax = 64L * 1024 * 1024;
+    private static long seed = 1;
+    private static File workDir;
+    private static int basePort = 7000;
+    private static String external;
+
+    private static final String[] OPERATIONS = {"upload", "download", "list", "delete"};
+    private static final List<Process> processes = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        parseArgs(args);
+        Runtime.getRuntime().addShutdownHook(new Thread(BenchmarkCluster::stopCluster));
+
+        String host = "127.0.0.1";
+        int principalPort = basePort;
+        if (external != null) {
+            host = external.substring(0, external.lastIndexOf(':'));
+            principalPort = Integer.parseInt(external.substring(external.lastIndexOf(':') + 1));
+        } else {
+            startCluster();
+        }
+
+        LoadGenerator generator = new LoadGenerator(host, principalPort, parseMix(mixSpec));
+        System.out.println("Préchauffage pendant " + warmupSeconds + " s...");
+        generator.run(warmupSeconds);
+        generator.reset();
+        System.out.println("Mesure pendant " + durationSeconds + " s avec " + clients + " clients...");
+        long start = System.nanoTime();
+        generator.run(durationSeconds);
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        generator.report(elapsedSeconds);
+
+        stopCluster();
+    }
+
+    private static void parseArgs(String[] args) throws IOException {
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "-secondaries": secondaries = Integer.parseInt(value); break;
+                case "-clients": clients = Integer.parseInt(value); break;
+                case "-duration": durationSeconds = Integer.parseInt(value); break;
+                case "-warmup": warmupSeconds = Integer.parseInt(value); break;
+                case "-mix": mixSpec = value; break;
+                case "-sizeMedian": sizeMedian = Long.parseLong(value); break;
+                case "-sizeSigma": sizeSigma = Double.parseDouble(value); break;
+                case "-sizeMax": sizeMax = Long.parseLong(value); break;
+                case "-seed": seed = Long.parseLong(value); break;
+                case "-workDir": workDir = new File(value); break;
+                case "-basePort": basePort = Integer.parseInt(value); break;
+                case "-external": external = value; break;
+                default: throw new IllegalArgumentException("Option inconnue : " + args[i]);
+            }
+        }
+        if (workDir == null) {
+            workDir = Files.createTempDirectory("pftp-cluster").toFile();
+        }
+    }
+
+    private static int[] parseMix(String spec) {
+        int[] weights = new int[OPERATIONS.length];
+        for (String entry : spec.split(",")) {
+            String[] kv = entry.split("=");
+            int index = Arrays.asList(OPERATIONS).indexOf(kv[0].trim());
+            if (index < 0) {
+                throw new IllegalArgumentException("Opération inconnue dans -mix : " + kv[0]);
+            }
+            weights[index] = Integer.parseInt(kv[1].trim());
+        }
+        return weights;
+    }
+
+    // Ports : principal = basePort, secondaire i = basePort + 1 + i ; chaque secondaire réplique
+    // vers le suivant dans l'anneau.
+    private static void startCluster() throws Exception {
+        int principalPort = basePort;
+        List<String> storageAddresses = new ArrayList<>();
+        for (int i = 0; i < secondaries; i++) {
+            storageAddresses.add("127.0.0.1:" + (basePort + 1 + i));
+        }
+
+        for (int i = 0; i < secondaries; i++) {
+            int port = basePort + 1 + i;
+            String replica = storageAddresses.get((i + 1) % secondaries);
+            startProcess("secondaire" + i, Arrays.asList(
+                    "-Dreplica.address=" + (secondaries > 1 ? replica : ":0"),
+                    "-Dprincipal.address=127.0.0.1:" + principalPort,
+                    "-Dmetrics.port=" + (basePort + 100 + 1 + i)),
+                    "ServeurSecondaire", String.valueOf(port), "0", "0");
+        }
+        for (String address : storageAddresses) {
+            awaitPort("127.0.0.1", Integer.parseInt(address.split(":")[1]));
+        }
+
+        startProcess("principal", Arrays.asList(
+                "-Dprincipal.port=" + principalPort,
+                "-Dstorage.servers=" + String.join(",", storageAddresses),
+                "-Dmetrics.port=" + (basePort + 100)),
+                "ServeurPrincipal");
+        awaitPort("127.0.0.1", principalPort);
+        System.out.println("Cluster démarré dans " + workDir + " : principal 127.0.0.1:" + principalPort
+                + ", secondaires " + storageAddresses);
+    }
+
+    private static void startProcess(String name, List<String> properties, String mainClass, String... args) throws IOException {
+        File dir = new File(workDir, name);
+        dir.mkdirs();
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.addAll(properties);
+        command.add(mainClass);
+        command.addAll(Arrays.asList(args));
+
+        ProcessBuilder builder = new ProcessBuilder(command)
+                .directory(dir)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(dir, "console.log"));
+        synchronized (processes) {
+            processes.add(builder.start());
+        }
+    }
+
+    private static String absoluteClassPath() {
+        StringBuilder sb = new StringBuilder();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            if (sb.length() > 0) sb.append(File.pathSeparator);
+            sb.append(new File(entry).getAbsolutePath());
+        }
+        return sb.toString();
+    }
+
+    private static void awaitPort(String host, int port) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 30_000;
+        while (System.currentTimeMillis() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress(host, port), 500);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IllegalStateException("Le port " + host + ":" + port + " ne répond pas");
+    }
+
+    private static void stopCluster() {
+        synchronized (processes) {
+            for (Process process : processes) {
+                process.destroy();
+            }
+            processes.clear();
+        }
+    }
+
+    static class LoadGenerator {
+        private final String host;
+        private final int port;
+        private final int[] weights;
+        private final int totalWeight;
+        private final AtomicInteger fileCounter = new AtomicInteger();
+        private final Map<String, Metrics.Histogram> latencies = new ConcurrentHashMap<>();
+        private final Map<String, AtomicLong> errors = new ConcurrentHashMap<>();
+        private final Map<String, AtomicLong> bytes = new ConcurrentHashMap<>();
+        // Fichiers téléversés avec succès, candidats aux download et delete
+        private final List<String> storedFiles = Collections.synchronizedList(new ArrayList<>());
+        private int generation;
+
+        LoadGenerator(String host, int port, int[] weights) {
+            this.host = host;
+            this.port = port;
+            this.weights = weights;
+            this.totalWeight = Arrays.stream(weights).sum();
+            reset();
+        }
+
+        void reset() {
+            generation++;
+            for (String op : OPERATIONS) {
+                latencies.put(op, new Metrics.Histogram("pftp_bench_" + op, ""));
+                errors.put(op, new AtomicLong());
+                bytes.put(op, new AtomicLong());
+            }
+        }
+
+        void run(int seconds) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+            ExecutorService pool = Executors.newFixedThreadPool(clients);
+            for (int c = 0; c < clients; c++) {
+                final Random random = new Random(seed * 1_000_003L + generation * 7919L + c);
+                pool.execute(() -> clientLoop(random, deadline));
+            }
+            pool.shutdown();
+            pool.awaitTermination(seconds + 600L, TimeUnit.SECONDS);
+        }
+
+        // Un client simulé garde sa connexion au principal, comme ClientApplication
+        private void clientLoop(Random random, long deadline) {
+            Socket socket = null;
+            DataInputStream dis = null;
+            DataOutputStream dos = null;
+            while (System.nanoTime() < deadline) {
+                String op = pickOperation(random);
+                long start = System.nanoTime();
+                try {
+                    if (socket == null) {
+                        socket = new Socket(host, port);
+                        dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                        dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    }
+                    boolean ok = execute(op, random, dis, dos);
+                    if (!ok) {
+                        errors.get(op).incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    errors.get(op).incrementAndGet();
+                    closeQuietly(socket);
+                    socket = null;
+                }
+                Metrics.recordSince(latencies.get(op), start);
+            }
+            closeQuietly(socket);
+        }
+
+        private String pickOperation(Random random) {
+            int r = random.nextInt(Math.max(1, totalWeight));
+            for (int i = 0; i < weights.length; i++) {
+                r -= weights[i];
+                if (r < 0) {
+                    String op = OPERATIONS[i];
+                    // Sans fichier stocké, download et delete deviennent des upload
+                    if (("download".equals(op) || "delete".equals(op)) && storedFiles.isEmpty()) {
+                        return "upload";
+                    }
+                    return op;
+                }
+            }
+            return "list";
+        }
+
+        private boolean execute(String op, Random random, DataInputStream dis, DataOutputStream dos) throws IOException {
+            switch (op) {
+                case "upload": {
+                    String name = "bench_" + seed + "_" + fileCounter.incrementAndGet() + ".bin";
+                    long size = drawFileSize(random);
+                    dos.writeUTF("upload");
+                    dos.writeUTF(name);
+                    dos.writeLong(size);
+                    byte[] buffer = new byte[64 * 1024];
+                    random.nextBytes(buffer);
+                    long remaining = size;
+                    while (remaining > 0) {
+                        int chunk = (int) Math.min(buffer.length, remaining);
+                        dos.write(buffer, 0, chunk);
+                        remaining -= chunk;
+                    }
+                    dos.flush();
+                    String response = dis.readUTF();
+                    bytes.get(op).addAndGet(size);
+                    if (response.startsWith("Fichier distribué")) {
+                        storedFiles.add(name);
+                        return true;
+                    }
+                    return false;
+                }
+                case "download": {
+                    String name = randomStoredFile(random);
+                    if (name == null) {
+                        return true;
+                    }
+                    dos.writeUTF("download");
+                    dos.writeUTF(name);
+                    dos.flush();
+                    String response = dis.readUTF();
+                    if (!response.startsWith("Downloading")) {
+                        return false;
+                    }
+                    long length = dis.readLong();
+                    byte[] buffer = new byte[64 * 1024];
+                    long remaining = length;
+                    while (remaining > 0) {
+                        int read = dis.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                        if (read == -1) {
+                            throw new EOFException("Connexion fermée pendant le téléchargement");
+                        }
+                        remaining -= read;
+                    }
+                    bytes.get(op).addAndGet(length);
+                    return true;
+                }
+                case "list": {
+                    dos.writeUTF("list");
+                    dos.flush();
+                    return dis.readUTF().startsWith("Fichiers disponibles");
+                }
+                case "delete": {
+                    String name = randomStoredFile(random);
+                    if (name == null || !storedFiles.remove(name)) {
+                        return true;
+                    }
+                    dos.writeUTF("DELETE_FILE");
+                    dos.writeUTF(name);
+                    dos.flush();
+                    return "SUCCESS".equals(dis.readUTF());
+                }
+                default:
+                    throw new IllegalStateException(op);
+            }
+        }
+
+        private String randomStoredFile(Random random) {
+            synchronized (storedFiles) {
+                if (storedFiles.isEmpty()) {
+                    return null;
+                }
+                return storedFiles.get(random.nextInt(storedFiles.size()));
+            }
+        }
+
+        // Taille log-normale de médiane sizeMedian, bornée à [1, sizeMax]
+        private long drawFileSize(Random random) {
+            double size = sizeMedian * Math.exp(sizeSigma * random.nextGaussian());
+            return Math.max(1, Math.min(sizeMax, (long) size));
+        }
+
+        void report(double elapsedSeconds) {
+            System.out.printf(Locale.ROOT, "%n%-10s %10s %10s %8s %12s %12s %12s %12s%n",
+                    "operation", "ops", "ops/s", "erreurs", "Mo/s", "p50 (ms)", "p99 (ms)", "p999 (ms)");
+            long totalOps = 0;
+            long totalErrors = 0;
+            for (String op : OPERATIONS) {
+                Metrics.Histogram h = latencies.get(op);
+                long count = h.count();
+                long errorCount = errors.get(op).get();
+                totalOps += count;
+                totalErrors += errorCount;
+                System.out.printf(Locale.ROOT, "%-10s %10d %10.1f %7.2f%% %12.2f %12.3f %12.3f %12.3f%n",
+                        op, count, count / elapsedSeconds,
+                        count == 0 ? 0.0 : 100.0 * errorCount / count,
+                        bytes.get(op).get() / (1024.0 * 1024.0) / elapsedSeconds,
+                        h.percentile(0.5) / 1000.0, h.percentile(0.99) / 1000.0, h.percentile(0.999) / 1000.0);
+            }
+            System.out.printf(Locale.ROOT, "%-10s %10d %10.1f %7.2f%%%n", "total", totalOps, totalOps / elapsedSeconds,
+                    totalOps == 0 ? 0.0 : 100.0 * totalErrors / totalOps);
+        }
+
+        private static void closeQuietly(Socket socket) {
+            if (socket != null) {
+                try {
+                    socket.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
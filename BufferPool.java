@@ -0,0 +1,96 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Réserve partagée de ByteBuffer directs, par classes de taille (16 Ko, 64 Ko, 256 Ko, 1 Mo).
+// Un tampon direct est coûteux à allouer et n'est libéré qu'au passage du GC : les boucles de copie
+// l'empruntent pour la durée d'un transfert puis le rendent. Chaque classe garde au plus
+// buffer.pool.bytes / (nombre de classes) octets de tampons inactifs ; au-delà ils sont abandonnés au GC.
+public class BufferPool {
+
+    private static final int[] SIZE_CLASSES = {16 * 1024, 64 * 1024, 256 * 1024, 1024 * 1024};
+    private static final long POOL_BYTES = Long.getLong("buffer.pool.bytes", 32L * 1024 * 1024); // Mémoire directe gardée en réserve
+    private static final int MIN_TRANSFER_BUFFER = 64 * 1024; // En dessous, les appels système dominent le coût d'un gros transfert
+
+    private static final List<ConcurrentLinkedQueue<ByteBuffer>> idle = new ArrayList<>(); // Une file par classe de taille
+    private static final AtomicInteger[] idleCounts = new AtomicInteger[SIZE_CLASSES.length];
+    private static final int[] maxIdle = new int[SIZE_CLASSES.length];
+    // Séries résolues une fois pour ne pas passer par le registre à chaque emprunt
+    private static final Metrics.Counter[] hits = new Metrics.Counter[SIZE_CLASSES.length];
+    private static final Metrics.Counter[] misses = new Metrics.Counter[SIZE_CLASSES.length];
+    private static final Metrics.Gauge idleBytes = Metrics.gauge("pftp_buffer_pool_idle_bytes");
+    private static final Metrics.Gauge allocatedBytes = Metrics.gauge("pftp_buffer_pool_allocated_bytes");
+
+    static {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            String size = String.valueOf(SIZE_CLASSES[i]);
+            idle.add(new ConcurrentLinkedQueue<>());
+            idleCounts[i] = new AtomicInteger();
+            maxIdle[i] = (int) Math.max(2, POOL_BYTES / SIZE_CLASSES.length / SIZE_CLASSES[i]);
+            hits[i] = Metrics.counter("pftp_buffer_pool_hits_total", "size", size);
+            misses[i] = Metrics.counter("pftp_buffer_pool_misses_total", "size", size);
+        }
+    }
+
+    // Tampon vide (position 0, limite = capacité) d'au moins size octets, plafonné à la plus grande classe
+    static ByteBuffer acquire(int size) {
+        int c = classFor(size);
+        ByteBuffer buffer = idle.get(c).poll();
+        if (buffer != null) {
+            idleCounts[c].decrementAndGet();
+            idleBytes.add(-buffer.capacity());
+            hits[c].inc();
+            buffer.clear();
+            return buffer;
+        }
+        misses[c].inc();
+        allocatedBytes.add(SIZE_CLASSES[c]);
+        return ByteBuffer.allocateDirect(SIZE_CLASSES[c]);
+    }
+
+    static void release(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect()) {
+            return;
+        }
+        for (int c = 0; c < SIZE_CLASSES.length; c++) {
+            if (SIZE_CLASSES[c] == buffer.capacity()) {
+                if (idleCounts[c].incrementAndGet() <= maxIdle[c]) {
+                    idle.get(c).offer(buffer);
+                    idleBytes.add(buffer.capacity());
+                } else {
+                    idleCounts[c].decrementAndGet();
+                    allocatedBytes.add(-buffer.capacity());
+                }
+                return;
+            }
+        }
+    }
+
+    // Taille de tampon pour une copie locale de length octets
+    static int sizeFor(long length) {
+        return SIZE_CLASSES[classFor(length)];
+    }
+
+    // Taille de tampon pour un transfert réseau : assez grande pour remplir les tampons noyau de la socket
+    // en un appel, sans dépasser la taille du transfert
+    static int sizeFor(long length, java.net.Socket socket) {
+        long socketBuffer = MIN_TRANSFER_BUFFER;
+        try {
+            socketBuffer = Math.max(socketBuffer, Math.max(socket.getSendBufferSize(), socket.getReceiveBufferSize()));
+        } catch (java.net.SocketException e) {
+            // Socket fermée : la copie échouera d'elle-même
+        }
+        return SIZE_CLASSES[classFor(Math.min(length, socketBuffer))];
+    }
+
+    private static int classFor(long size) {
+        for (int c = 0; c < SIZE_CLASSES.length; c++) {
+            if (size <= SIZE_CLASSES[c]) {
+                return c;
+            }
+        }
+        return SIZE_CLASSES.length - 1;
+    }
+}
@@ -2,7 +2,8 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
-import java.net.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ClientApplication {
     private JFrame frame;
@@ -10,10 +11,11 @@ public class ClientApplication {
     private JButton connectButton, listFilesButton, uploadButton, downloadButton, deleteButton;
     private JList<String> fileList;
     private DefaultListModel<String> listModel;
-    private Socket socket;
-    private PrintWriter out;
-    private BufferedReader in;
+    private PseudoFtpClient client;
     private JProgressBar progressBar;
+    // Progression écrite par les threads de transfert, affichée périodiquement sur l'EDT
+    private final AtomicLong progressDone = new AtomicLong();
+    private final AtomicLong progressTotal = new AtomicLong();
 
     public static void main(String[] args) {
         EventQueue.invokeLater(() -> {
@@ -85,6 +87,7 @@ public class ClientApplication {
         progressBar = new JProgressBar(0, 100);
         progressBar.setStringPainted(true);
         buttonPanel.add(progressBar, BorderLayout.SOUTH);
+        new Timer(100, e -> refreshProgress()).start();
 
         // Action listeners
         connectButton.addActionListener(this::connectToServer);
@@ -97,148 +100,101 @@ public class ClientApplication {
         String ip = ipField.getText();
         int port = Integer.parseInt(portField.getText());
 
+        if (client != null) {
+            client.close();
+        }
+        client = new PseudoFtpClient(ip, port);
+        client.setDirectTransfers(Boolean.getBoolean("pftp.direct")); // Échanges directs avec les serveurs de stockage
         try {
-            socket = new Socket(ip, port);
-            out = new PrintWriter(socket.getOutputStream(), true);
-            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            JOptionPane.showMessageDialog(frame, "Connected to server");
+            // Un fichier déjà téléchargé et inchangé sur le serveur est servi depuis ce cache
+            client.setCache(new ContentCache(new File(System.getProperty("pftp.cache", System.getProperty("user.home") + "/.pftp-cache")),
+                    Long.getLong("pftp.cache.bytes", 1024L * 1024 * 1024)));
         } catch (IOException ex) {
-            JOptionPane.showMessageDialog(frame, "Connection failed: " + ex.getMessage());
+            System.out.println("Cache local indisponible : " + ex.getMessage());
         }
+        PseudoFtpClient current = client;
+        new Thread(() -> {
+            try {
+                current.connect();
+                showMessage("Connected to server");
+            } catch (IOException ex) {
+                showMessage("Connection failed: " + ex.getMessage());
+            }
+        }).start();
     }
+
     private void listFiles(ActionEvent e) {
-        if (socket == null || socket.isClosed()) {
+        if (client == null) {
             JOptionPane.showMessageDialog(frame, "Not connected to any server.");
             return;
         }
-    
-        try {
-            // Envoyer la commande "list" au serveur
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            dos.writeUTF("list");
-            dos.flush(); // Toujours vider après écriture
-            System.out.println("Commande 'list' envoyée.");
-    
-            // Recevoir la réponse
-            DataInputStream dis = new DataInputStream(socket.getInputStream());
-            String response = dis.readUTF(); // Lire la réponse en UTF
-            System.out.println("Réponse reçue : " + response);
-    
+
+        client.listAsync().whenComplete((files, ex) -> SwingUtilities.invokeLater(() -> {
+            if (ex != null) {
+                JOptionPane.showMessageDialog(frame, "Error listing files: " + rootMessage(ex));
+                return;
+            }
             listModel.clear();
-            if (response.startsWith("Fichiers disponibles")) {
-                // Extraire les fichiers de la réponse
-                String[] files = response.split(":")[1].trim().split(", ");
-                for (String file : files) {
-                    listModel.addElement(file);
-                }
-            } else {
-                JOptionPane.showMessageDialog(frame, response); // Afficher une éventuelle erreur
+            for (String file : files) {
+                listModel.addElement(file);
             }
-        } catch (IOException ex) {
-            JOptionPane.showMessageDialog(frame, "Error listing files: " + ex.getMessage());
-        }
+        }));
     }
-    
+
     private void uploadFile(ActionEvent e) {
-        if (socket == null || socket.isClosed()) {
+        if (client == null) {
             JOptionPane.showMessageDialog(frame, "Not connected to any server.");
             return;
         }
-    
+
         JFileChooser fileChooser = new JFileChooser();
         int result = fileChooser.showOpenDialog(frame);
         if (result == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
-            new Thread(() -> {
-                try {
-                    DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-    
-                    System.out.println("Début de l'upload du fichier : " + file.getName());
-                    dos.writeUTF("upload");
-                    dos.writeUTF(file.getName());
-                    dos.writeLong(file.length());
-    
-                    try (FileInputStream fileIn = new FileInputStream(file)) {
-                        byte[] buffer = new byte[4096];
-                        long totalRead = 0;
-                        int bytesRead;
-                        progressBar.setValue(0);
-                        progressBar.setMaximum((int) file.length());
-    
-                        while ((bytesRead = fileIn.read(buffer)) != -1) {
-                            dos.write(buffer, 0, bytesRead);
-                            totalRead += bytesRead;
-                            progressBar.setValue((int) totalRead);
-                            System.out.println("Upload en cours : " + totalRead + "/" + file.length() + " octets");
-                        }
-                    }
-                    System.out.println("Upload terminé pour le fichier : " + file.getName());
-                    JOptionPane.showMessageDialog(frame, "File uploaded successfully!");
-                    listFiles(null); // Mettre à jour la liste des fichiers après l'upload
-                } catch (IOException ex) {
-                    System.out.println("Erreur lors de l'upload du fichier : " + ex.getMessage());
-                    JOptionPane.showMessageDialog(frame, "Error uploading file: " + ex.getMessage());
+            System.out.println("Début de l'upload du fichier : " + file.getName());
+            startProgress(file.length());
+            // Un fichier déjà stocké n'est envoyé que sous forme de delta (-Dpftp.sync=false pour tout renvoyer)
+            CompletableFuture<Void> transfer = Boolean.parseBoolean(System.getProperty("pftp.sync", "true"))
+                    ? client.syncAsync(file, this::onProgress) : client.uploadAsync(file, this::onProgress);
+            transfer.whenComplete((ignored, ex) -> SwingUtilities.invokeLater(() -> {
+                if (ex != null) {
+                    System.out.println("Erreur lors de l'upload du fichier : " + rootMessage(ex));
+                    JOptionPane.showMessageDialog(frame, "Error uploading file: " + rootMessage(ex));
+                    return;
                 }
-            }).start();
+                System.out.println("Upload terminé pour le fichier : " + file.getName());
+                JOptionPane.showMessageDialog(frame, "File uploaded successfully!");
+                listFiles(null); // Mettre à jour la liste des fichiers après l'upload
+            }));
         }
     }
-    
+
     private void downloadFile(ActionEvent e) {
-        if (socket == null || socket.isClosed()) {
+        if (client == null) {
             JOptionPane.showMessageDialog(frame, "Not connected to any server.");
             return;
         }
-    
+
         String selectedFile = fileList.getSelectedValue();
         if (selectedFile == null) {
             JOptionPane.showMessageDialog(frame, "No file selected.");
             return;
         }
-    
-        new Thread(() -> {
-            try {
-                DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                DataInputStream dis = new DataInputStream(socket.getInputStream());
-    
-                dos.writeUTF("download");
-                dos.writeUTF(selectedFile);
-    
-                String response = dis.readUTF();
-                if (response.startsWith("Downloading")) {
-                    String fileName = response.split(":")[1];
-                    long fileLength = dis.readLong();
-    
-                    JFileChooser fileChooser = new JFileChooser();
-                    fileChooser.setSelectedFile(new File(fileName));
-                    int result = fileChooser.showSaveDialog(frame);
-                    if (result == JFileChooser.APPROVE_OPTION) {
-                        File file = fileChooser.getSelectedFile();
-    
-                        try (FileOutputStream fileOut = new FileOutputStream(file)) {
-                            byte[] buffer = new byte[4096];
-                            long totalRead = 0;
-                            int bytesRead;
-                            progressBar.setValue(0);
-                            progressBar.setMaximum((int) fileLength);
-    
-                            while (totalRead < fileLength &&
-                                    (bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileLength - totalRead))) != -1) {
-                                fileOut.write(buffer, 0, bytesRead);
-                                totalRead += bytesRead;
-                                progressBar.setValue((int) totalRead);
-                            }
-                        }
-    
-                        JOptionPane.showMessageDialog(frame, "File downloaded successfully!");
-                    }
-                } else {
-                    JOptionPane.showMessageDialog(frame, response);
+
+        JFileChooser fileChooser = new JFileChooser();
+        fileChooser.setSelectedFile(new File(selectedFile));
+        int result = fileChooser.showSaveDialog(frame);
+        if (result == JFileChooser.APPROVE_OPTION) {
+            File file = fileChooser.getSelectedFile();
+            startProgress(0);
+            client.downloadAsync(selectedFile, file, this::onProgress).whenComplete((length, ex) -> SwingUtilities.invokeLater(() -> {
+                if (ex != null) {
+                    JOptionPane.showMessageDialog(frame, "Error: " + rootMessage(ex));
+                    return;
                 }
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(frame, "Error: " + ex.getMessage());
-            }
-        }).start();
+                JOptionPane.showMessageDialog(frame, "File downloaded successfully!");
+            }));
+        }
     }
 
     private void deleteFile(ActionEvent e) {
@@ -247,25 +203,51 @@ public class ClientApplication {
             JOptionPane.showMessageDialog(frame, "Veuillez sélectionner un fichier à supprimer.", "Erreur", JOptionPane.ERROR_MESSAGE);
             return;
         }
-    
-        new Thread(() -> {
-            try (Socket socket = new Socket(ipField.getText(), Integer.parseInt(portField.getText()));
-                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                 DataInputStream dis = new DataInputStream(socket.getInputStream())) {
-    
-                dos.writeUTF("DELETE_FILE");
-                dos.writeUTF(selectedFile);
-    
-                String response = dis.readUTF();
-                if ("SUCCESS".equals(response)) {
-                    JOptionPane.showMessageDialog(frame, "Fichier supprimé avec succès.", "Succès", JOptionPane.INFORMATION_MESSAGE);
-                    listModel.removeElement(selectedFile);
-                } else {
-                    JOptionPane.showMessageDialog(frame, "Erreur : " + dis.readUTF(), "Erreur", JOptionPane.ERROR_MESSAGE);
-                }
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(frame, "Erreur de connexion : " + ex.getMessage(), "Erreur", JOptionPane.ERROR_MESSAGE);
+        if (client == null) {
+            JOptionPane.showMessageDialog(frame, "Not connected to any server.");
+            return;
+        }
+
+        client.deleteAsync(selectedFile).whenComplete((ignored, ex) -> SwingUtilities.invokeLater(() -> {
+            if (ex == null) {
+                JOptionPane.showMessageDialog(frame, "Fichier supprimé avec succès.", "Succès", JOptionPane.INFORMATION_MESSAGE);
+                listModel.removeElement(selectedFile);
+            } else if (ex.getCause() instanceof PseudoFtpClient.ServerException) {
+                JOptionPane.showMessageDialog(frame, "Erreur : " + rootMessage(ex), "Erreur", JOptionPane.ERROR_MESSAGE);
+            } else {
+                JOptionPane.showMessageDialog(frame, "Erreur de connexion : " + rootMessage(ex), "Erreur", JOptionPane.ERROR_MESSAGE);
             }
-        }).start();
+        }));
+    }
+
+    private void startProgress(long total) {
+        progressDone.set(0);
+        progressTotal.set(total);
+        progressBar.setValue(0);
+    }
+
+    // Appelé par les threads de transfert : aucune opération Swing ici
+    private void onProgress(long transferred, long total) {
+        progressTotal.set(total);
+        progressDone.set(transferred);
+    }
+
+    private void refreshProgress() {
+        long total = progressTotal.get();
+        int percent = total > 0 ? (int) (progressDone.get() * 100 / total) : 0;
+        if (progressBar.getValue() != percent) {
+            progressBar.setValue(percent);
+        }
+    }
+
+    private void showMessage(String message) {
+        SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame, message));
+    }
+
+    private static String rootMessage(Throwable ex) {
+        while (ex.getCause() != null) {
+            ex = ex.getCause();
+        }
+        return ex.getMessage();
     }
 }
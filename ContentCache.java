@@ -0,0 +1,99 @@
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+
+// Cache disque des fichiers téléchargés, par nom et version (voir ServeurPrincipal.fileVersion).
+// Une entrée est un fichier de données (data/) et un fichier de version (versions/) du même nom ; les copies
+// en cours sont dans tmp/. Des répertoires séparés évitent qu'un fichier nommé par exemple foo.version ne se
+// confonde avec la version de foo. La version est écrite après les données et effacée avant qu'elles ne
+// soient remplacées : une entrée interrompue est simplement absente.
+// Au-delà de maxBytes, les entrées les moins récemment utilisées sont effacées.
+public class ContentCache {
+
+    private final File dataDir;
+    private final File versionDir;
+    private final File tempDir;
+    private final long maxBytes;
+
+    public ContentCache(File dir, long maxBytes) throws IOException {
+        this.dataDir = new File(dir, "data");
+        this.versionDir = new File(dir, "versions");
+        this.tempDir = new File(dir, "tmp");
+        this.maxBytes = maxBytes;
+        Files.createDirectories(dataDir.toPath());
+        Files.createDirectories(versionDir.toPath());
+        Files.createDirectories(tempDir.toPath());
+    }
+
+    // Version de la copie en cache, null si le fichier n'y est pas
+    public synchronized String version(String fileName) {
+        File data = dataFile(fileName);
+        File version = versionFile(fileName);
+        if (!data.isFile() || !version.isFile()) {
+            return null;
+        }
+        try {
+            return new String(Files.readAllBytes(version.toPath()), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    // Copie l'entrée vers target si elle est toujours à la version attendue et renvoie sa taille ;
+    // -1 si elle a été évincée ou remplacée depuis la lecture de sa version
+    public synchronized long copyTo(String fileName, String version, File target) throws IOException {
+        if (version == null || !version.equals(version(fileName))) {
+            return -1;
+        }
+        File data = dataFile(fileName);
+        try {
+            Files.copy(data.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (NoSuchFileException e) {
+            return -1; // Effacée par un autre client partageant le répertoire
+        }
+        data.setLastModified(System.currentTimeMillis());
+        return data.length();
+    }
+
+    public synchronized void store(String fileName, String version, File source) throws IOException {
+        File data = dataFile(fileName);
+        File versionFile = versionFile(fileName);
+        Files.deleteIfExists(versionFile.toPath());
+        File temp = new File(tempDir, data.getName());
+        Files.copy(source.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp.toPath(), data.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.write(versionFile.toPath(), version.getBytes(StandardCharsets.UTF_8));
+        evict();
+    }
+
+    private void evict() throws IOException {
+        File[] entries = dataDir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        long total = 0;
+        for (File entry : entries) {
+            total += entry.length();
+        }
+        Arrays.sort(entries, Comparator.comparingLong(File::lastModified));
+        for (int i = 0; i < entries.length && total > maxBytes; i++) {
+            total -= entries[i].length();
+            Files.deleteIfExists(new File(versionDir, entries[i].getName()).toPath());
+            Files.deleteIfExists(entries[i].toPath());
+        }
+    }
+
+    private File dataFile(String fileName) {
+        return new File(dataDir, URLEncoder.encode(fileName, StandardCharsets.UTF_8));
+    }
+
+    private File versionFile(String fileName) {
+        return new File(versionDir, URLEncoder.encode(fileName, StandardCharsets.UTF_8));
+    }
+}
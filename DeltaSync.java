@@ -0,0 +1,295 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+// Synchronisation différentielle à la rsync.
+// La version stockée est décrite par les signatures de ses blocs de taille fixe : une somme glissante
+// (celle de rsync, recalculable en O(1) quand la fenêtre avance d'un octet) et une empreinte forte (MD5).
+// Le client fait glisser une fenêtre sur la nouvelle version : quand la somme glissante puis l'empreinte
+// d'une fenêtre correspondent à un bloc connu, il envoie une référence au bloc, sinon l'octet sortant
+// part en littéral. Seuls les blocs complets d'une partie sont signés : la fin d'une partie plus courte
+// qu'un bloc est renvoyée en littéral si elle est modifiée ou déplacée.
+public class DeltaSync {
+
+    // Opérations d'un delta (SYNC_BEGIN, client vers principal) :
+    //   OP_COPY premier bloc (int), nombre de blocs consécutifs (int)
+    //   OP_LITERAL longueur (int), octets
+    //   OP_END taille de la nouvelle version (long)
+    // et morceaux d'une partie composée (COMPOSE_PART, principal vers serveur de stockage) :
+    //   OP_COPY partie locale (UTF), position (long), longueur (long)
+    //   OP_LITERAL longueur (long), octets
+    static final byte OP_COPY = 0;
+    static final byte OP_LITERAL = 1;
+    static final byte OP_END = 2;
+
+    static final int STRONG_LENGTH = 16; // MD5
+    static final int SIGNATURE_LENGTH = 4 + STRONG_LENGTH; // Somme glissante puis empreinte forte
+    static final int MIN_BLOCK_SIZE = 2 * 1024;
+    static final int MAX_BLOCK_SIZE = 1024 * 1024;
+    private static final int MAX_LITERAL = 64 * 1024; // Octets au plus par opération OP_LITERAL
+
+    // Taille de bloc de rsync : racine carrée de la taille du fichier (en Ko entiers), bornée
+    static int blockSizeFor(long fileSize) {
+        long size = ((long) Math.sqrt((double) fileSize) + 1023) / 1024 * 1024;
+        return (int) Math.max(MIN_BLOCK_SIZE, Math.min(128 * 1024, size));
+    }
+
+    // s1 = somme des octets, s2 = somme des sommes partielles, chacune modulo 2^16
+    static int weak(byte[] data, int offset, int length) {
+        int s1 = 0;
+        int s2 = 0;
+        for (int i = 0; i < length; i++) {
+            s1 += data[offset + i] & 0xff;
+            s2 += s1;
+        }
+        return (s1 & 0xffff) | (s2 << 16);
+    }
+
+    static MessageDigest strongDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 indisponible", e);
+        }
+    }
+
+    // Écrit le nombre de blocs complets de [position, position + length) dans file puis leurs signatures
+    static void writeSignatures(FileChannel file, long position, long length, int blockSize, OutputStream out) throws IOException {
+        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+        MessageDigest digest = strongDigest();
+        long count = length / blockSize;
+        byte[] block = new byte[blockSize];
+        dos.writeInt((int) count);
+        for (long i = 0; i < count; i++) {
+            ByteBuffer buffer = ByteBuffer.wrap(block);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + i * blockSize + buffer.position()) < 0) {
+                    throw new EOFException("Partie tronquée au bloc " + i);
+                }
+            }
+            dos.writeInt(weak(block, 0, blockSize));
+            dos.write(digest.digest(block));
+        }
+        dos.flush();
+    }
+
+    // Compare file aux signatures (SIGNATURE_LENGTH octets par bloc) et écrit le delta sur out, OP_END compris.
+    // progress reçoit le nombre d'octets de chaque tranche lue. Renvoie le nombre d'octets envoyés en littéral.
+    static long writeDelta(File file, int blockSize, byte[] signatures, DataOutputStream out, LongConsumer progress) throws IOException {
+        int blockCount = signatures.length / SIGNATURE_LENGTH;
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        ByteBuffer table = ByteBuffer.wrap(signatures);
+        for (int i = 0; i < blockCount; i++) {
+            blocksByWeak.computeIfAbsent(table.getInt(i * SIGNATURE_LENGTH), k -> new ArrayList<>()).add(i);
+        }
+
+        try (InputStream in = new FileInputStream(file)) {
+            DeltaWriter writer = new DeltaWriter(out);
+            ByteReader reader = new ByteReader(in, progress);
+            MessageDigest digest = strongDigest();
+            byte[] strong = new byte[STRONG_LENGTH];
+            byte[] window = new byte[blockSize];
+            int head = 0; // Octet le plus ancien de la fenêtre circulaire
+
+            int filled = reader.fill(window);
+            int s1 = 0;
+            int s2 = 0;
+            if (filled == blockSize) {
+                int sum = weak(window, 0, blockSize);
+                s1 = sum & 0xffff;
+                s2 = sum >>> 16;
+            }
+            while (filled == blockSize) {
+                List<Integer> candidates = blocksByWeak.get((s1 & 0xffff) | (s2 << 16));
+                int match = -1;
+                if (candidates != null) {
+                    digest.update(window, head, blockSize - head);
+                    digest.update(window, 0, head);
+                    byte[] actual = digest.digest();
+                    // Le bloc qui prolonge la dernière copie d'abord : il allonge la même opération
+                    int expected = writer.nextBlock();
+                    if (expected >= 0 && candidates.contains(expected) && strongMatches(table, expected, actual, strong)) {
+                        match = expected;
+                    } else {
+                        for (int candidate : candidates) {
+                            if (strongMatches(table, candidate, actual, strong)) {
+                                match = candidate;
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (match >= 0) {
+                    writer.copy(match);
+                    head = 0;
+                    filled = reader.fill(window);
+                    if (filled == blockSize) {
+                        int sum = weak(window, 0, blockSize);
+                        s1 = sum & 0xffff;
+                        s2 = sum >>> 16;
+                    }
+                    continue;
+                }
+                int next = reader.read();
+                if (next < 0) {
+                    break;
+                }
+                int leaving = window[head] & 0xff;
+                writer.literal(window[head]);
+                window[head] = (byte) next;
+                head = head + 1 == blockSize ? 0 : head + 1;
+                s1 = (s1 - leaving + next) & 0xffff;
+                s2 = (s2 - blockSize * leaving + s1) & 0xffff;
+            }
+            // Fin du fichier : ce qui reste dans la fenêtre part en littéral
+            if (filled == blockSize) {
+                for (int i = 0; i < blockSize; i++) {
+                    writer.literal(window[(head + i) % blockSize]);
+                }
+            } else {
+                for (int i = 0; i < filled; i++) {
+                    writer.literal(window[i]);
+                }
+            }
+            writer.end(reader.total);
+            return writer.literalBytes;
+        }
+    }
+
+    private static boolean strongMatches(ByteBuffer table, int block, byte[] actual, byte[] scratch) {
+        table.position(block * SIGNATURE_LENGTH + 4);
+        table.get(scratch);
+        return Arrays.equals(scratch, actual);
+    }
+
+    // Regroupe les blocs consécutifs en une seule copie et les octets littéraux en tranches de MAX_LITERAL
+    private static class DeltaWriter {
+        private final DataOutputStream out;
+        private final byte[] literal = new byte[MAX_LITERAL];
+        private int literalLength;
+        private int copyFirst = -1;
+        private int copyCount;
+        long literalBytes;
+
+        DeltaWriter(DataOutputStream out) {
+            this.out = out;
+        }
+
+        int nextBlock() {
+            return copyFirst >= 0 ? copyFirst + copyCount : -1;
+        }
+
+        void copy(int block) throws IOException {
+            flushLiteral();
+            if (copyFirst >= 0 && block == copyFirst + copyCount) {
+                copyCount++;
+                return;
+            }
+            flushCopy();
+            copyFirst = block;
+            copyCount = 1;
+        }
+
+        void literal(byte b) throws IOException {
+            flushCopy();
+            literal[literalLength++] = b;
+            if (literalLength == literal.length) {
+                flushLiteral();
+            }
+        }
+
+        void end(long size) throws IOException {
+            flushCopy();
+            flushLiteral();
+            out.writeByte(OP_END);
+            out.writeLong(size);
+        }
+
+        private void flushCopy() throws IOException {
+            if (copyFirst >= 0) {
+                out.writeByte(OP_COPY);
+                out.writeInt(copyFirst);
+                out.writeInt(copyCount);
+                copyFirst = -1;
+                copyCount = 0;
+            }
+        }
+
+        private void flushLiteral() throws IOException {
+            if (literalLength > 0) {
+                out.writeByte(OP_LITERAL);
+                out.writeInt(literalLength);
+                out.write(literal, 0, literalLength);
+                literalBytes += literalLength;
+                literalLength = 0;
+            }
+        }
+    }
+
+    // Lecture octet par octet sur un tampon, sans la synchronisation de BufferedInputStream
+    private static class ByteReader {
+        private final InputStream in;
+        private final LongConsumer progress;
+        private final byte[] buffer = new byte[256 * 1024];
+        private int position;
+        private int limit;
+        long total; // Octets lus depuis le début du fichier
+
+        ByteReader(InputStream in, LongConsumer progress) {
+            this.in = in;
+            this.progress = progress;
+        }
+
+        int read() throws IOException {
+            if (position == limit && !refill()) {
+                return -1;
+            }
+            total++;
+            return buffer[position++] & 0xff;
+        }
+
+        // Remplit target autant que possible et renvoie le nombre d'octets lus
+        int fill(byte[] target) throws IOException {
+            int filled = 0;
+            while (filled < target.length) {
+                if (position == limit && !refill()) {
+                    break;
+                }
+                int n = Math.min(target.length - filled, limit - position);
+                System.arraycopy(buffer, position, target, filled, n);
+                position += n;
+                filled += n;
+            }
+            total += filled;
+            return filled;
+        }
+
+        private boolean refill() throws IOException {
+            int n = in.read(buffer);
+            if (n <= 0) {
+                return false;
+            }
+            position = 0;
+            limit = n;
+            if (progress != null) {
+                progress.accept(n);
+            }
+            return true;
+        }
+    }
+}
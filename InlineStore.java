@@ -0,0 +1,132 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Contenu des petits fichiers, conservé directement dans les métadonnées du serveur principal.
+// Les fichiers sont gardés en mémoire et journalisés dans un fichier en ajout seul
+// (opération, nom, taille, contenu) ; le journal est réécrit au chargement s'il contient trop d'entrées mortes.
+// Ces fichiers n'ont pas d'autre copie : chaque opération est forcée sur disque avant que put ou remove
+// ne rende la main, donc avant l'accusé de réception envoyé au client.
+public class InlineStore {
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DELETE = 2;
+
+    private final File file;
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private FileOutputStream journalFile;
+    private DataOutputStream journal;
+    private long totalBytes;
+    private boolean truncated;
+
+    public InlineStore(File file) throws IOException {
+        this.file = file;
+        int records = load();
+        if (truncated || records > 2 * files.size() + 100) {
+            rewrite();
+        }
+        journalFile = new FileOutputStream(file, true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalFile));
+        updateGauges();
+    }
+
+    public byte[] get(String name) {
+        return files.get(name);
+    }
+
+    public boolean contains(String name) {
+        return files.containsKey(name);
+    }
+
+    public Set<String> names() {
+        return files.keySet();
+    }
+
+    public synchronized void put(String name, byte[] data) throws IOException {
+        journal.writeByte(OP_PUT);
+        journal.writeUTF(name);
+        journal.writeInt(data.length);
+        journal.write(data);
+        sync();
+        byte[] previous = files.put(name, data);
+        totalBytes += data.length - (previous == null ? 0 : previous.length);
+        updateGauges();
+    }
+
+    public synchronized boolean remove(String name) throws IOException {
+        byte[] previous = files.remove(name);
+        if (previous == null) {
+            return false;
+        }
+        totalBytes -= previous.length;
+        journal.writeByte(OP_DELETE);
+        journal.writeUTF(name);
+        sync();
+        updateGauges();
+        return true;
+    }
+
+    private void sync() throws IOException {
+        journal.flush();
+        journalFile.getFD().sync();
+    }
+
+    // Rejoue le journal ; un enregistrement tronqué en fin de fichier (arrêt brutal) est ignoré
+    private int load() throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                byte op;
+                try {
+                    op = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+                try {
+                    String name = in.readUTF();
+                    if (op == OP_PUT) {
+                        byte[] data = new byte[in.readInt()];
+                        in.readFully(data);
+                        files.put(name, data);
+                    } else {
+                        files.remove(name);
+                    }
+                    records++;
+                } catch (EOFException e) {
+                    truncated = true;
+                    break;
+                }
+            }
+        }
+        for (byte[] data : files.values()) {
+            totalBytes += data.length;
+        }
+        return records;
+    }
+
+    private void rewrite() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            for (Map.Entry<String, byte[]> entry : files.entrySet()) {
+                out.writeByte(OP_PUT);
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void updateGauges() {
+        Metrics.gauge("pftp_inline_files").set(files.size());
+        Metrics.gauge("pftp_inline_bytes").set(totalBytes);
+    }
+}
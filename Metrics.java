@@ -0,0 +1,299 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Instrumentation partagée par le serveur principal et les serveurs secondaires.
+// Tous les compteurs sont sans verrou : LongAdder pour les compteurs, AtomicLong pour les jauges
+// et des histogrammes log-linéaires (style HDR) pour les latences.
+public class Metrics {
+
+    private static final Map<String, Counter> counters = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+    private static final Map<String, Histogram> histograms = new ConcurrentHashMap<>();
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final String BIND_ADDRESS = System.getProperty("metrics.bind"); // Adresse d'écoute de /metrics (par défaut la boucle locale ; 0.0.0.0 pour toutes les interfaces)
+
+    private Metrics() {
+    }
+
+    public static Counter counter(String name, String... labels) {
+        return counters.computeIfAbsent(key(name, labels), k -> new Counter(name, labelString(labels)));
+    }
+
+    public static Gauge gauge(String name, String... labels) {
+        return gauges.computeIfAbsent(key(name, labels), k -> new Gauge(name, labelString(labels)));
+    }
+
+    public static Histogram histogram(String name, String... labels) {
+        return histograms.computeIfAbsent(key(name, labels), k -> new Histogram(name, labelString(labels)));
+    }
+
+    // Enregistre la durée écoulée depuis startNanos (obtenu par System.nanoTime()) en microsecondes
+    public static void recordSince(Histogram histogram, long startNanos) {
+        histogram.record((System.nanoTime() - startNanos) / 1000);
+    }
+
+    // Enregistre un transfert de données : octets, durée et débit instantané
+    // peer : ip:port d'un serveur contacté, ip seule d'une connexion entrante (son port est éphémère)
+    public static void recordTransfer(String direction, String peer, long bytes, long startNanos) {
+        long elapsedNanos = Math.max(1, System.nanoTime() - startNanos);
+        counter("pftp_transfer_bytes_total", "direction", direction, "peer", peer).add(bytes);
+        histogram("pftp_transfer_duration_seconds", "direction", direction, "peer", peer).record(elapsedNanos / 1000);
+        gauge("pftp_transfer_last_bytes_per_second", "direction", direction, "peer", peer)
+                .set((long) (bytes * 1_000_000_000.0 / elapsedNanos));
+    }
+
+    private static String key(String name, String[] labels) {
+        return labels.length == 0 ? name : name + labelString(labels);
+    }
+
+    private static String labelString(String[] labels) {
+        if (labels.length == 0) {
+            return "";
+        }
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Les labels doivent être fournis par paires nom/valeur");
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0) sb.append(',');
+            sb.append(labels[i]).append("=\"")
+              .append(labels[i + 1].replace("\\", "\\\\").replace("\"", "\\\""))
+              .append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    // Rendu au format texte Prometheus (version 0.0.4)
+    public static String renderPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        Set<String> typed = new HashSet<>();
+
+        for (Counter c : sorted(counters)) {
+            if (typed.add(c.name)) sb.append("# TYPE ").append(c.name).append(" counter\n");
+            sb.append(c.name).append(c.labels).append(' ').append(c.get()).append('\n');
+        }
+        for (Gauge g : sorted(gauges)) {
+            if (typed.add(g.name)) sb.append("# TYPE ").append(g.name).append(" gauge\n");
+            sb.append(g.name).append(g.labels).append(' ').append(g.get()).append('\n');
+        }
+        for (Histogram h : sorted(histograms)) {
+            if (typed.add(h.name)) sb.append("# TYPE ").append(h.name).append(" summary\n");
+            for (double q : QUANTILES) {
+                sb.append(h.name).append(withLabel(h.labels, "quantile", Double.toString(q))).append(' ')
+                  .append(h.percentile(q) / 1_000_000.0).append('\n');
+            }
+            sb.append(h.name).append("_sum").append(h.labels).append(' ').append(h.sum() / 1_000_000.0).append('\n');
+            sb.append(h.name).append("_count").append(h.labels).append(' ').append(h.count()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // Rendu compact pour la commande STATS du protocole
+    public static String renderText() {
+        StringBuilder sb = new StringBuilder();
+        for (Counter c : sorted(counters)) {
+            sb.append(c.name).append(c.labels).append(" = ").append(c.get()).append('\n');
+        }
+        for (Gauge g : sorted(gauges)) {
+            sb.append(g.name).append(g.labels).append(" = ").append(g.get()).append('\n');
+        }
+        for (Histogram h : sorted(histograms)) {
+            sb.append(h.name).append(h.labels)
+              .append(" count=").append(h.count())
+              .append(" p50=").append(h.percentile(0.5)).append("us")
+              .append(" p99=").append(h.percentile(0.99)).append("us")
+              .append(" p999=").append(h.percentile(0.999)).append("us")
+              .append(" max=").append(h.max()).append("us\n");
+        }
+        return sb.toString();
+    }
+
+    // Envoie les statistiques sur une connexion du protocole : longueur puis contenu UTF-8
+    public static void writeStats(DataOutputStream dos) throws IOException {
+        byte[] stats = renderText().getBytes(StandardCharsets.UTF_8);
+        dos.writeUTF("STATS");
+        dos.writeLong(stats.length);
+        dos.write(stats);
+        dos.flush();
+    }
+
+    // Démarre le point d'accès HTTP local /metrics (format Prometheus)
+    public static HttpServer startHttpServer(int port) throws IOException {
+        InetAddress address = BIND_ADDRESS == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(BIND_ADDRESS);
+        HttpServer server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = renderPrometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        server.setExecutor(null);
+        server.start();
+        return server;
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        if (labels.isEmpty()) {
+            return "{" + label + "}";
+        }
+        return labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static <T> List<T> sorted(Map<String, T> metrics) {
+        List<String> keys = new ArrayList<>(metrics.keySet());
+        Collections.sort(keys);
+        List<T> values = new ArrayList<>(keys.size());
+        for (String k : keys) {
+            values.add(metrics.get(k));
+        }
+        return values;
+    }
+
+    static class Counter {
+        final String name;
+        final String labels;
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    static class Gauge {
+        final String name;
+        final String labels;
+        private final AtomicLong value = new AtomicLong();
+
+        Gauge(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        public void inc() {
+            value.incrementAndGet();
+        }
+
+        public void dec() {
+            value.decrementAndGet();
+        }
+
+        public void add(long delta) {
+            value.addAndGet(delta);
+        }
+
+        public void set(long newValue) {
+            value.set(newValue);
+        }
+
+        public long get() {
+            return value.get();
+        }
+    }
+
+    // Histogramme log-linéaire : 16 sous-intervalles par puissance de deux, soit une erreur relative
+    // d'au plus ~6 % sur toute la plage des valeurs positives d'un long.
+    static class Histogram {
+        private static final int SUB_BITS = 4;
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int BUCKETS = SUB_COUNT + (63 - SUB_BITS) * SUB_COUNT;
+
+        final String name;
+        final String labels;
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name, String labels) {
+            this.name = name;
+            this.labels = labels;
+        }
+
+        public void record(long value) {
+            if (value < 0) value = 0;
+            buckets.incrementAndGet(indexOf(value));
+            count.increment();
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // réessayer
+            }
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long sum() {
+            return sum.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        // Renvoie la borne supérieure de l'intervalle contenant le quantile demandé
+        public long percentile(double quantile) {
+            long total = count();
+            if (total == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil(quantile * total));
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= target) {
+                    return Math.min(upperBound(i), max());
+                }
+            }
+            return max();
+        }
+
+        static int indexOf(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - SUB_BITS)) - SUB_COUNT;
+            return SUB_COUNT + (exponent - SUB_BITS) * SUB_COUNT + sub;
+        }
+
+        static long lowerBound(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int exponent = (index - SUB_COUNT) / SUB_COUNT + SUB_BITS;
+            int sub = (index - SUB_COUNT) % SUB_COUNT;
+            return (long) (SUB_COUNT + sub) << (exponent - SUB_BITS);
+        }
+
+        static long upperBound(int index) {
+            return index + 1 < BUCKETS ? lowerBound(index + 1) - 1 : Long.MAX_VALUE;
+        }
+    }
+}
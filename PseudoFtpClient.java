@@ -0,0 +1,827 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
+
+// Bibliothèque cliente du protocole, indépendante de l'interface Swing.
+// Les gros transferts sont découpés en plages envoyées ou lues en parallèle sur plusieurs connexions
+// (commandes UPLOAD_* et DOWNLOAD_* du serveur principal) ; chaque plage est réessayée sur une
+// nouvelle connexion en cas d'erreur réseau.
+// En mode transfert direct, le principal ne fournit que le plan de placement et la liste des parties :
+// les octets sont échangés directement et en parallèle avec les serveurs de stockage.
+// Quand l'espace de noms est partagé entre plusieurs principaux (ShardMap), chaque commande portant sur un
+// fichier part vers le principal propriétaire ; la table est lue au premier besoin et rechargée après
+// une redirection WRONG_SHARD.
+// Avec un ContentCache, les téléchargements sont conditionnels (IF_NONE_MATCH) : si la version du fichier
+// n'a pas changé, le principal répond NOT_MODIFIED et la copie locale est servie.
+// sync envoie une nouvelle version d'un fichier déjà stocké sous forme de delta (DeltaSync) : seuls les
+// blocs modifiés sont transmis.
+public class PseudoFtpClient implements AutoCloseable {
+
+    public interface ProgressListener {
+        // Appelé depuis les threads de transfert ; l'implémentation doit être peu coûteuse
+        void onProgress(long transferred, long total);
+    }
+
+    private static final String WRONG_SHARD = "WRONG_SHARD ";
+
+    private final String seed; // Principal contacté en premier (ip:port)
+    private final int streams;
+    private final long rangeSize;
+    private final int maxRetries;
+    private final Map<String, BlockingDeque<Connection>> idleConnections = new ConcurrentHashMap<>(); // Par principal
+    private volatile ShardMap shardMap; // null tant que la table n'a pas été lue
+    private final ExecutorService rangePool;
+    private final ExecutorService asyncPool;
+    private volatile boolean directTransfers;
+    private volatile ContentCache cache;
+
+    public PseudoFtpClient(String host, int port) {
+        this(host, port, 4, 8 * 1024 * 1024, 3);
+    }
+
+    public PseudoFtpClient(String host, int port, int streams, long rangeSize, int maxRetries) {
+        this.seed = host + ":" + port;
+        this.streams = Math.max(1, streams);
+        this.rangeSize = rangeSize;
+        this.maxRetries = maxRetries;
+        this.rangePool = Executors.newFixedThreadPool(this.streams, daemonThreads("pftp-range"));
+        this.asyncPool = Executors.newCachedThreadPool(daemonThreads("pftp-async"));
+    }
+
+    // Active les transferts directs avec les serveurs de stockage (ils doivent être joignables par le client)
+    public void setDirectTransfers(boolean directTransfers) {
+        this.directTransfers = directTransfers;
+    }
+
+    // Cache local des fichiers téléchargés (null pour le désactiver) ; le principal doit connaître IF_NONE_MATCH
+    public void setCache(ContentCache cache) {
+        this.cache = cache;
+    }
+
+    // Vérifie que le serveur est joignable et garde la connexion pour les commandes suivantes
+    public void connect() throws IOException {
+        release(openConnection(seed));
+    }
+
+    // Réunit les listes de tous les shards
+    public List<String> list() throws IOException {
+        List<String> files = new ArrayList<>();
+        ShardMap map = shardMap();
+        for (String address : map.isSharded() ? map.peers() : Collections.singletonList(seed)) {
+            files.addAll(listShard(address));
+        }
+        return files;
+    }
+
+    private List<String> listShard(String address) throws IOException {
+        return withRetry(address, c -> {
+            c.dos.writeUTF("list");
+            c.dos.flush();
+            String response = c.dis.readUTF();
+            if (!response.startsWith("Fichiers disponibles")) {
+                throw new ServerException(response);
+            }
+            List<String> files = new ArrayList<>();
+            for (String file : response.substring(response.indexOf(':') + 1).trim().split(", ")) {
+                if (!file.isEmpty()) {
+                    files.add(file);
+                }
+            }
+            return files;
+        });
+    }
+
+    public void delete(String fileName) throws IOException {
+        withShard(fileName, c -> {
+            c.dos.writeUTF("DELETE_FILE");
+            c.dos.writeUTF(fileName);
+            c.dos.flush();
+            String response = c.dis.readUTF();
+            if (!"SUCCESS".equals(response)) {
+                throw new ServerException(response);
+            }
+            return null;
+        });
+    }
+
+    public void upload(File file, ProgressListener listener) throws IOException {
+        long size = file.length();
+        if (directTransfers) {
+            uploadDirect(file, listener);
+        } else if (streams == 1 || size <= rangeSize) {
+            uploadSingleStream(file, listener);
+        } else {
+            uploadParallel(file, listener);
+        }
+    }
+
+    // Upload différentiel : le principal fournit les signatures des blocs de la version stockée et le client
+    // n'envoie que les octets qui n'y figurent pas. Un fichier absent du serveur est envoyé normalement.
+    public void sync(File file, ProgressListener listener) throws IOException {
+        long size = file.length();
+        boolean synced = withShard(file.getName(), c -> {
+            c.dos.writeUTF("SYNC_BEGIN");
+            c.dos.writeUTF(file.getName());
+            c.dos.writeLong(size);
+            c.dos.flush();
+            String response = c.dis.readUTF();
+            if ("NO_BASE".equals(response)) {
+                return false;
+            }
+            if ("INLINE".equals(response)) {
+                // Petit fichier : le contenu suit directement
+                try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                    TransferIO.send(channel, 0, size, c.socket, null, null);
+                }
+            } else if ("OK".equals(response)) {
+                int blockSize = c.dis.readInt();
+                byte[] signatures = new byte[c.dis.readInt() * DeltaSync.SIGNATURE_LENGTH];
+                c.dis.readFully(signatures);
+                AtomicLong scanned = new AtomicLong();
+                DeltaSync.writeDelta(file, blockSize, signatures, c.dos, read -> notify(listener, scanned.addAndGet(read), size));
+                c.dos.flush();
+            } else {
+                throw new ServerException(response);
+            }
+            checkDistributed(c.dis.readUTF());
+            notify(listener, size, size);
+            return true;
+        });
+        if (!synced) {
+            upload(file, listener);
+        }
+    }
+
+    public long download(String fileName, File target, ProgressListener listener) throws IOException {
+        ContentCache cache = this.cache;
+        ReadCondition condition = cache != null ? new ReadCondition(cache.version(fileName)) : null;
+        long length;
+        try {
+            length = fetch(fileName, target, listener, condition);
+        } catch (NotModifiedException e) {
+            length = cache.copyTo(fileName, condition.known, target);
+            if (length >= 0) {
+                notify(listener, length, length);
+                return length;
+            }
+            // Entrée évincée entre la réponse NOT_MODIFIED et la copie : téléchargement complet, sans version connue
+            condition = new ReadCondition(null);
+            length = fetch(fileName, target, listener, condition);
+        }
+        if (condition != null && !condition.current.isEmpty()) {
+            cache.store(fileName, condition.current, target);
+        }
+        return length;
+    }
+
+    private long fetch(String fileName, File target, ProgressListener listener, ReadCondition condition) throws IOException {
+        if (directTransfers) {
+            return downloadDirect(fileName, target, listener, condition);
+        } else if (streams == 1) {
+            return downloadSingleStream(fileName, target, listener, condition);
+        }
+        return downloadParallel(fileName, target, listener, condition);
+    }
+
+    public CompletableFuture<List<String>> listAsync() {
+        return async(this::list);
+    }
+
+    public CompletableFuture<Void> deleteAsync(String fileName) {
+        return async(() -> {
+            delete(fileName);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> uploadAsync(File file, ProgressListener listener) {
+        return async(() -> {
+            upload(file, listener);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> syncAsync(File file, ProgressListener listener) {
+        return async(() -> {
+            sync(file, listener);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Long> downloadAsync(String fileName, File target, ProgressListener listener) {
+        return async(() -> download(fileName, target, listener));
+    }
+
+    @Override
+    public void close() {
+        rangePool.shutdownNow();
+        asyncPool.shutdownNow();
+        for (BlockingDeque<Connection> connections : idleConnections.values()) {
+            Connection c;
+            while ((c = connections.poll()) != null) {
+                c.close();
+            }
+        }
+    }
+
+    private void uploadSingleStream(File file, ProgressListener listener) throws IOException {
+        long size = file.length();
+        withShard(file.getName(), c -> {
+            c.dos.writeUTF("upload");
+            c.dos.writeUTF(file.getName());
+            c.dos.writeLong(size);
+            c.dos.flush();
+            AtomicLong sent = new AtomicLong();
+            try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                TransferIO.send(channel, 0, size, c.socket, null, read -> notify(listener, sent.addAndGet(read), size));
+            }
+            checkDistributed(c.dis.readUTF());
+            return null;
+        });
+    }
+
+    private void uploadParallel(File file, ProgressListener listener) throws IOException {
+        long size = file.length();
+        String sessionId = withShard(file.getName(), c -> {
+            c.dos.writeUTF("UPLOAD_BEGIN");
+            c.dos.writeUTF(file.getName());
+            c.dos.writeLong(size);
+            c.dos.flush();
+            String response = c.dis.readUTF();
+            if (!response.startsWith("OK:")) {
+                throw new ServerException(response);
+            }
+            return response.substring(3);
+        });
+
+        AtomicLong progress = new AtomicLong();
+        runRanges(size, (offset, length) -> withShard(file.getName(), c -> {
+            AtomicLong counted = new AtomicLong();
+            try (FileChannel channel = new FileInputStream(file).getChannel()) {
+                c.dos.writeUTF("UPLOAD_RANGE");
+                c.dos.writeUTF(sessionId);
+                c.dos.writeLong(offset);
+                c.dos.writeLong(length);
+                c.dos.flush();
+                TransferIO.send(channel, offset, length, c.socket, null, read -> {
+                    counted.addAndGet(read);
+                    notify(listener, progress.addAndGet(read), size);
+                });
+                String response = c.dis.readUTF();
+                if (!"OK".equals(response)) {
+                    throw new ServerException(response);
+                }
+                return null;
+            } catch (IOException e) {
+                progress.addAndGet(-counted.get()); // La plage sera renvoyée en entier
+                throw e;
+            }
+        }));
+
+        // Pas de nouvel essai : la session est consommée par la validation
+        Connection c = borrow(shardFor(file.getName()));
+        try {
+            c.dos.writeUTF("UPLOAD_COMMIT");
+            c.dos.writeUTF(sessionId);
+            c.dos.flush();
+            checkDistributed(c.dis.readUTF());
+            release(c);
+        } catch (IOException e) {
+            discard(c);
+            throw e;
+        }
+    }
+
+    private long downloadSingleStream(String fileName, File target, ProgressListener listener,
+                                      ReadCondition condition) throws IOException {
+        return withShard(fileName, c -> {
+            String response = requestRead(c, "download", fileName, condition);
+            if (!response.startsWith("Downloading")) {
+                throw new ServerException(response);
+            }
+            long length = c.dis.readLong();
+            AtomicLong received = new AtomicLong();
+            try (FileChannel channel = new FileOutputStream(target).getChannel()) {
+                TransferIO.receive(c.socket, channel, 0, length, null, read -> notify(listener, received.addAndGet(read), length));
+            }
+            return length;
+        });
+    }
+
+    private long downloadParallel(String fileName, File target, ProgressListener listener,
+                                  ReadCondition condition) throws IOException {
+        String[] session = withShard(fileName, c -> {
+            String response = requestRead(c, "DOWNLOAD_BEGIN", fileName, condition);
+            if (!response.startsWith("Downloading")) {
+                throw new ServerException(response);
+            }
+            return new String[]{c.dis.readUTF(), String.valueOf(c.dis.readLong())};
+        });
+        String sessionId = session[0];
+        long length = Long.parseLong(session[1]);
+
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(length);
+            FileChannel channel = raf.getChannel();
+            AtomicLong progress = new AtomicLong();
+            runRanges(length, (offset, rangeLength) -> withShard(fileName, c -> {
+                AtomicLong counted = new AtomicLong();
+                try {
+                    c.dos.writeUTF("DOWNLOAD_RANGE");
+                    c.dos.writeUTF(sessionId);
+                    c.dos.writeLong(offset);
+                    c.dos.writeLong(rangeLength);
+                    c.dos.flush();
+                    String response = c.dis.readUTF();
+                    if (!"OK".equals(response)) {
+                        throw new ServerException(response);
+                    }
+                    TransferIO.receive(c.socket, channel, offset, rangeLength, null, read -> {
+                        counted.addAndGet(read);
+                        notify(listener, progress.addAndGet(read), length);
+                    });
+                    return null;
+                } catch (IOException e) {
+                    progress.addAndGet(-counted.get());
+                    throw e;
+                }
+            }));
+        } finally {
+            try {
+                withShard(fileName, c -> {
+                    c.dos.writeUTF("DOWNLOAD_END");
+                    c.dos.writeUTF(sessionId);
+                    c.dos.flush();
+                    return c.dis.readUTF();
+                });
+            } catch (IOException ignored) {
+                // Le serveur libère de toute façon les sessions inactives
+            }
+        }
+        return length;
+    }
+
+    private void uploadDirect(File file, ProgressListener listener) throws IOException {
+        long size = file.length();
+        List<String[]> plan = new ArrayList<>();
+        String uploadId = withShard(file.getName(), c -> {
+            c.dos.writeUTF("PLACE_UPLOAD");
+            c.dos.writeUTF(file.getName());
+            c.dos.writeLong(size);
+            c.dos.flush();
+            String response = c.dis.readUTF();
+            if ("INLINE".equals(response)) {
+                return null;
+            }
+            if (!response.startsWith("OK:")) {
+                throw new ServerException(response);
+            }
+            plan.clear();
+            int count = c.dis.readInt();
+            for (int i = 0; i < count; i++) {
+                plan.add(new String[]{c.dis.readUTF(), String.valueOf(c.dis.readLong()),
+                        String.valueOf(c.dis.readLong()), c.dis.readUTF()});
+            }
+            return response.substring(3);
+        });
+        if (uploadId == null) {
+            // Petit fichier conservé par le principal dans ses métadonnées
+            uploadSingleStream(file, listener);
+            return;
+        }
+
+        long[] checksums = new long[plan.size()];
+        AtomicLong progress = new AtomicLong();
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (int i = 0; i < plan.size(); i++) {
+            final int index = i;
+            final String[] part = plan.get(i);
+            tasks.add(() -> {
+                checksums[index] = retryOnStorage(() -> storePart(part[3], part[0], file,
+                        Long.parseLong(part[1]), Long.parseLong(part[2]), size, progress, listener));
+                return null;
+            });
+        }
+        runAll(tasks);
+
+        Connection c = borrow(shardFor(file.getName()));
+        try {
+            c.dos.writeUTF("COMMIT_UPLOAD");
+            c.dos.writeUTF(uploadId);
+            c.dos.writeInt(plan.size());
+            for (int i = 0; i < plan.size(); i++) {
+                c.dos.writeLong(Long.parseLong(plan.get(i)[2]));
+                c.dos.writeLong(checksums[i]);
+            }
+            c.dos.flush();
+            checkDistributed(c.dis.readUTF());
+            release(c);
+        } catch (IOException e) {
+            discard(c);
+            throw e;
+        }
+    }
+
+    // Envoie une plage du fichier comme partie sur un serveur de stockage et renvoie son CRC32C
+    private long storePart(String server, String partName, File file, long offset, long length,
+                           long total, AtomicLong progress, ProgressListener listener) throws IOException {
+        AtomicLong counted = new AtomicLong();
+        try (Socket socket = openStorageSocket(server);
+             DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             DataInputStream dis = new DataInputStream(socket.getInputStream());
+             FileChannel channel = new FileInputStream(file).getChannel()) {
+            dos.writeUTF("store");
+            dos.writeUTF(partName);
+            dos.writeLong(length);
+            dos.flush();
+            CRC32C crc = new CRC32C();
+            TransferIO.send(channel, offset, length, socket, crc, read -> {
+                counted.addAndGet(read);
+                notify(listener, progress.addAndGet(read), total);
+            });
+            String response = dis.readUTF();
+            if (!response.startsWith("Fichier reçu")) {
+                throw new IOException("Refus de " + server + " : " + response);
+            }
+            return crc.getValue();
+        } catch (IOException e) {
+            progress.addAndGet(-counted.get());
+            throw e;
+        }
+    }
+
+    private long downloadDirect(String fileName, File target, ProgressListener listener,
+                                ReadCondition condition) throws IOException {
+        List<Object[]> parts = withShard(fileName, c -> {
+            String response = requestRead(c, "LOCATE", fileName, condition);
+            if ("INLINE".equals(response)) {
+                return null;
+            }
+            if (!"OK".equals(response)) {
+                throw new ServerException(response);
+            }
+            List<Object[]> located = new ArrayList<>();
+            int count = c.dis.readInt();
+            for (int i = 0; i < count; i++) {
+                String partName = c.dis.readUTF();
+                long size = c.dis.readLong();
+                long checksum = c.dis.readLong();
+                List<String> locations = new ArrayList<>();
+                int locationCount = c.dis.readInt();
+                for (int j = 0; j < locationCount; j++) {
+                    locations.add(c.dis.readUTF());
+                }
+                located.add(new Object[]{partName, size, checksum, locations});
+            }
+            return located;
+        });
+
+        if (parts == null) {
+            // Petit fichier servi depuis la mémoire du principal
+            return downloadSingleStream(fileName, target, listener, condition);
+        }
+        long total = 0;
+        for (Object[] part : parts) {
+            if ((Long) part[1] < 0) {
+                // Entrée du catalogue sans taille (ancienne version) : passer par le principal
+                return streams == 1 ? downloadSingleStream(fileName, target, listener, condition)
+                        : downloadParallel(fileName, target, listener, condition);
+            }
+            total += (Long) part[1];
+        }
+
+        try (RandomAccessFile raf = new RandomAccessFile(target, "rw")) {
+            raf.setLength(total);
+            FileChannel channel = raf.getChannel();
+            AtomicLong progress = new AtomicLong();
+            List<Callable<Void>> tasks = new ArrayList<>();
+            long offset = 0;
+            for (Object[] part : parts) {
+                final long partOffset = offset;
+                final long fileLength = total;
+                @SuppressWarnings("unchecked")
+                final List<String> locations = (List<String>) part[3];
+                tasks.add(() -> {
+                    retryOnStorage(() -> fetchPart(locations, (String) part[0], (Long) part[1], (Long) part[2],
+                            channel, partOffset, fileLength, progress, listener));
+                    return null;
+                });
+                offset += (Long) part[1];
+            }
+            runAll(tasks);
+        }
+        return total;
+    }
+
+    // Lit une partie depuis le premier emplacement (principal puis répliques) qui la fournit intacte
+    private long fetchPart(List<String> locations, String partName, long size, long checksum, FileChannel target,
+                           long offset, long total, AtomicLong progress, ProgressListener listener) throws IOException {
+        IOException last = null;
+        for (String server : locations) {
+            AtomicLong counted = new AtomicLong();
+            try (Socket socket = openStorageSocket(server);
+                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+                dos.writeUTF("GET_PART");
+                dos.writeUTF(partName);
+                dos.flush();
+                if (!"PART_FOUND".equals(dis.readUTF()) || dis.readLong() != size) {
+                    throw new IOException("Partie " + partName + " absente ou incomplète sur " + server);
+                }
+                CRC32C crc = new CRC32C();
+                TransferIO.receive(socket, target, offset, size, crc, read -> {
+                    counted.addAndGet(read);
+                    notify(listener, progress.addAndGet(read), total);
+                });
+                if (crc.getValue() != checksum) {
+                    throw new IOException("Somme de contrôle invalide pour " + partName + " sur " + server);
+                }
+                return size;
+            } catch (IOException e) {
+                progress.addAndGet(-counted.get());
+                last = e;
+            }
+        }
+        throw last != null ? last : new IOException("Aucun emplacement pour " + partName);
+    }
+
+    // Envoie une commande de lecture, conditionnée par la version en cache si condition n'est pas null,
+    // et renvoie la réponse de la commande ; NotModifiedException si la copie en cache est à jour
+    private String requestRead(Connection c, String command, String fileName, ReadCondition condition) throws IOException {
+        if (condition != null) {
+            c.dos.writeUTF("IF_NONE_MATCH");
+            c.dos.writeUTF(condition.known != null ? condition.known : "");
+        }
+        c.dos.writeUTF(command);
+        c.dos.writeUTF(fileName);
+        c.dos.flush();
+        String response = c.dis.readUTF();
+        if (condition == null || !("MODIFIED".equals(response) || "NOT_MODIFIED".equals(response))) {
+            return response; // Réponse de la commande, erreur ou redirection
+        }
+        if ("NOT_MODIFIED".equals(response)) {
+            throw new NotModifiedException(fileName);
+        }
+        condition.current = c.dis.readUTF();
+        return c.dis.readUTF();
+    }
+
+    private Socket openStorageSocket(String server) throws IOException {
+        int separator = server.lastIndexOf(':');
+        return TransferIO.connect(server.substring(0, separator), Integer.parseInt(server.substring(separator + 1)));
+    }
+
+    interface StorageExchange {
+        long run() throws IOException;
+    }
+
+    private long retryOnStorage(StorageExchange exchange) throws IOException {
+        IOException last = null;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            try {
+                return exchange.run();
+            } catch (IOException e) {
+                last = e;
+                backoff(attempt);
+            }
+        }
+        throw last;
+    }
+
+    interface RangeTask {
+        void run(long offset, long length) throws IOException;
+    }
+
+    // Exécute les plages [0, size) sur le pool de flux et attend la fin de toutes
+    private void runRanges(long size, RangeTask task) throws IOException {
+        List<Callable<Void>> tasks = new ArrayList<>();
+        for (long offset = 0; offset < size; offset += rangeSize) {
+            final long rangeOffset = offset;
+            final long length = Math.min(rangeSize, size - offset);
+            tasks.add(() -> {
+                task.run(rangeOffset, length);
+                return null;
+            });
+        }
+        runAll(tasks);
+    }
+
+    // Exécute les tâches sur le pool de flux ; la première erreur annule les autres
+    private void runAll(List<Callable<Void>> tasks) throws IOException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (Callable<Void> task : tasks) {
+            futures.add(rangePool.submit(task));
+        }
+        IOException failure = null;
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                    for (Future<?> other : futures) {
+                        other.cancel(true);
+                    }
+                }
+            } catch (CancellationException ignored) {
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Transfert interrompu");
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    interface Exchange<T> {
+        T run(Connection connection) throws IOException;
+    }
+
+    // Envoie la commande au principal propriétaire du fichier ; une redirection signale une table périmée
+    private <T> T withShard(String fileName, Exchange<T> exchange) throws IOException {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                return withRetry(shardFor(fileName), exchange);
+            } catch (ServerException e) {
+                if (!e.getMessage().startsWith(WRONG_SHARD) || attempt >= maxRetries) {
+                    throw e;
+                }
+                shardMap = null;
+            }
+        }
+    }
+
+    private String shardFor(String fileName) throws IOException {
+        ShardMap map = shardMap();
+        return map.isSharded() ? map.ownerOf(fileName) : seed;
+    }
+
+    private ShardMap shardMap() throws IOException {
+        ShardMap map = shardMap;
+        if (map == null) {
+            map = withRetry(seed, c -> {
+                c.dos.writeUTF("SHARD_MAP");
+                c.dos.flush();
+                List<String> peers = new ArrayList<>();
+                if ("OK".equals(c.dis.readUTF())) { // Un principal sans partitionnement ne connaît pas la commande
+                    int count = c.dis.readInt();
+                    for (int i = 0; i < count; i++) {
+                        peers.add(c.dis.readUTF());
+                    }
+                }
+                return new ShardMap(peers, -1);
+            });
+            shardMap = map;
+        }
+        return map;
+    }
+
+    // Les erreurs réseau sont réessayées sur une nouvelle connexion ; les refus du serveur ne le sont pas
+    private <T> T withRetry(String address, Exchange<T> exchange) throws IOException {
+        IOException last = null;
+        for (int attempt = 0; attempt <= maxRetries; attempt++) {
+            Connection c;
+            try {
+                c = borrow(address);
+            } catch (IOException e) {
+                last = e;
+                backoff(attempt);
+                continue;
+            }
+            try {
+                T result = exchange.run(c);
+                release(c);
+                return result;
+            } catch (ServerException e) {
+                release(c);
+                throw e;
+            } catch (IOException e) {
+                discard(c);
+                last = e;
+                backoff(attempt);
+            }
+        }
+        throw last;
+    }
+
+    private void backoff(int attempt) throws InterruptedIOException {
+        if (attempt >= maxRetries) {
+            return;
+        }
+        try {
+            Thread.sleep(100L << attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Transfert interrompu");
+        }
+    }
+
+    private <T> CompletableFuture<T> async(Callable<T> call) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        asyncPool.execute(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    private static void checkDistributed(String response) throws ServerException {
+        if (!response.startsWith("Fichier distribué")) {
+            throw new ServerException(response);
+        }
+    }
+
+    private static void notify(ProgressListener listener, long transferred, long total) {
+        if (listener != null) {
+            listener.onProgress(transferred, total);
+        }
+    }
+
+    private Connection borrow(String address) throws IOException {
+        Connection c = idle(address).pollFirst();
+        return c != null ? c : openConnection(address);
+    }
+
+    private Connection openConnection(String address) throws IOException {
+        int separator = address.lastIndexOf(':');
+        return new Connection(address, TransferIO.connect(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1))));
+    }
+
+    private BlockingDeque<Connection> idle(String address) {
+        return idleConnections.computeIfAbsent(address, k -> new LinkedBlockingDeque<>());
+    }
+
+    private void release(Connection c) {
+        idle(c.address).offerFirst(c);
+    }
+
+    private void discard(Connection c) {
+        c.close();
+    }
+
+    private static ThreadFactory daemonThreads(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    // Réponse d'erreur explicite du serveur (par opposition à une erreur réseau)
+    public static class ServerException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public ServerException(String message) {
+            super(message);
+        }
+    }
+
+    // La copie en cache est à jour : pas un échec, mais interrompt l'échange comme un refus du serveur
+    static class NotModifiedException extends ServerException {
+        private static final long serialVersionUID = 1L;
+
+        NotModifiedException(String fileName) {
+            super("Non modifié : " + fileName);
+        }
+    }
+
+    // Version connue en cache (null si aucune) et version annoncée par le serveur pour le téléchargement
+    static class ReadCondition {
+        final String known;
+        volatile String current = "";
+
+        ReadCondition(String known) {
+            this.known = known;
+        }
+    }
+
+    static class Connection {
+        final String address; // Principal auquel la connexion est rattachée
+        final Socket socket;
+        final DataInputStream dis;
+        final DataOutputStream dos;
+
+        Connection(String address, Socket socket) throws IOException {
+            this.address = address;
+            this.socket = socket;
+            // Entrée non bufferisée : les données qui suivent une réponse sont lues directement sur le canal
+            this.dis = new DataInputStream(socket.getInputStream());
+            this.dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
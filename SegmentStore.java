@@ -0,0 +1,1081 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32C;
+
+// Moteur de stockage journalisé des serveurs secondaires.
+// Les parties sont ajoutées à la suite dans de gros fichiers de segment ; un index en table de hachage
+// projeté en mémoire (index.dat) associe chaque nom de partie à (segment, position, taille, crc32c).
+// Un compacteur en arrière-plan recopie les parties encore vivantes des segments majoritairement
+// supprimés puis efface ces segments.
+//
+// Format d'un enregistrement : magic (int), flags (byte), longueur du nom (short), nom (UTF-8),
+// longueur des données (long), crc32c (long), données. Une suppression ajoute un enregistrement
+// marqué FLAG_DELETED sans données ; il ne sert qu'à reconstruire l'index si index.dat est perdu.
+// Un enregistrement porte FLAG_PENDING dès la réservation de sa zone et jusqu'à la fin de la copie : si le
+// serveur s'arrête entre-temps, la reconstruction connaît sa taille et passe au suivant.
+//
+// Durabilité (voir Committer) : une écriture n'est publiée dans l'index, et write ne rend la main, qu'une
+// fois ses octets forcés sur disque, avec ceux des autres écritures du même lot.
+public class SegmentStore {
+
+    public enum Durability {
+        NONE, // Publication immédiate, sans force : les dernières écritures peuvent être perdues en cas de panne
+        SYNC, // Force dès qu'une écriture est prête ; celles arrivées pendant un force partagent le suivant
+        GROUP; // Comme SYNC, mais le lot attend la fenêtre configurée pour regrouper davantage d'écritures
+
+        static Durability fromLabel(String label) {
+            return valueOf(label.trim().toUpperCase(Locale.ROOT));
+        }
+    }
+
+    private static final int RECORD_MAGIC = 0x50465453;
+    private static final byte FLAG_DELETED = 1;
+    private static final byte FLAG_PENDING = 2; // Écriture ou copie commencée, données pas encore complètes
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    private static final String INDEX_FILE = "index.dat";
+
+    private final File dir;
+    private final String label; // Étiquette disk des métriques
+    private final long maxSegmentSize;
+    private final Map<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicLong> liveBytes = new ConcurrentHashMap<>();
+    private final Map<Integer, AtomicInteger> pendingWrites = new ConcurrentHashMap<>(); // Écritures réservées non terminées
+    // Verrou partagé le temps de trouver une partie et d'épingler son segment ; le compacteur prend le verrou
+    // exclusif pour retirer un segment. Un segment retiré encore épinglé est fermé et effacé par son dernier lecteur.
+    private final ReentrantReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final Map<Integer, AtomicInteger> pins = new ConcurrentHashMap<>(); // Lectures en cours par segment
+    private final Map<Integer, FileChannel> retired = new ConcurrentHashMap<>(); // Compactés, en attente de leurs lecteurs
+    private final Object appendLock = new Object();
+    private final Committer committer;
+    private final UnaryOperator<FileChannel> io; // Canal des écritures et lectures de parties (voir StripedStore)
+    private MappedIndex index;
+    private int currentSegment;
+    private long currentEnd;
+
+    public SegmentStore(File dir, long maxSegmentSize) throws IOException {
+        this(dir, maxSegmentSize, Durability.NONE, 0);
+    }
+
+    // windowMillis : attente maximale d'un lot en mode GROUP, ajoutée à la latence de chaque écriture
+    public SegmentStore(File dir, long maxSegmentSize, Durability durability, long windowMillis) throws IOException {
+        this(dir, maxSegmentSize, durability, windowMillis, UnaryOperator.identity());
+    }
+
+    // io enveloppe le canal du segment passé aux écritures de parties et aux PartReader ; le compacteur et
+    // la reconstruction de l'index utilisent directement les segments
+    public SegmentStore(File dir, long maxSegmentSize, Durability durability, long windowMillis,
+                        UnaryOperator<FileChannel> io) throws IOException {
+        this.dir = dir;
+        this.io = io;
+        this.label = dir.getPath();
+        this.maxSegmentSize = maxSegmentSize;
+        this.committer = new Committer(durability, durability == Durability.GROUP ? windowMillis : 0);
+        dir.mkdirs();
+        openSegments();
+        openIndex();
+        importLegacyFiles();
+        updateGauges();
+    }
+
+    public static class Entry {
+        public final int segment;
+        public final long offset; // début de l'enregistrement (en-tête)
+        public final int headerLength;
+        public final long length; // taille des données
+        public final long checksum;
+
+        Entry(int segment, long offset, int headerLength, long length, long checksum) {
+            this.segment = segment;
+            this.offset = offset;
+            this.headerLength = headerLength;
+            this.length = length;
+            this.checksum = checksum;
+        }
+
+        long recordLength() {
+            return headerLength + length;
+        }
+    }
+
+    public interface PartReader<T> {
+        // Les données de la partie occupent [position, position + entry.length) dans segment
+        T read(Entry entry, FileChannel segment, long position) throws IOException;
+    }
+
+    // Lit exactement length octets depuis in et les ajoute comme partie name (remplace une version précédente)
+    public Entry write(String name, long length, ReadableByteChannel in) throws IOException {
+        return write(name, length, in, null);
+    }
+
+    // progress reçoit la taille de chaque tranche écrite (et peut la ralentir)
+    public Entry write(String name, long length, ReadableByteChannel in, LongConsumer progress) throws IOException {
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        int headerLength = headerLength(nameBytes.length);
+        long[] location = reserve(headerLength + length);
+        int segment = (int) location[0];
+        long offset = location[1];
+        FileChannel channel = io.apply(segments.get(segment));
+        try {
+            writeFully(channel, header(nameBytes, FLAG_PENDING, length, 0), offset);
+            return writeReserved(name, nameBytes, segment, offset, channel, length, in, progress);
+        } finally {
+            pendingWrites.get(segment).decrementAndGet();
+        }
+    }
+
+    private Entry writeReserved(String name, byte[] nameBytes, int segment, long offset, FileChannel channel,
+                                long length, ReadableByteChannel in, LongConsumer progress) throws IOException {
+        int headerLength = headerLength(nameBytes.length);
+        CRC32C crc = new CRC32C();
+        try {
+            TransferIO.copy(in, channel, offset + headerLength, length, crc, progress, BufferPool.sizeFor(length));
+        } catch (IOException e) {
+            // Marquer la zone réservée comme morte pour que le parcours des segments puisse la sauter
+            writeFully(channel, header(nameBytes, FLAG_DELETED, length, 0), offset);
+            throw e;
+        }
+
+        // L'en-tête définitif n'est écrit qu'après le force des données, dans le lot du Committer : un
+        // enregistrement dont la validation échoue reste en cours (puis supprimé), jamais repris par rebuildIndex
+        ByteBuffer header = header(nameBytes, (byte) 0, length, crc.getValue());
+        Entry entry = new Entry(segment, offset, headerLength, length, crc.getValue());
+        try {
+            committer.commit(segment, () -> {
+                writeFully(segments.get(segment), header, offset);
+                committer.markDirty(segment); // En-tête forcé avec le lot suivant
+                publish(name, entry);
+            });
+        } catch (IOException e) {
+            try {
+                setFlags(channel, offset, FLAG_DELETED);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+        return entry;
+    }
+
+    private void publish(String name, Entry entry) throws IOException {
+        Entry previous = index.put(hash(name), entry);
+        liveBytes.computeIfAbsent(entry.segment, k -> new AtomicLong()).addAndGet(entry.recordLength());
+        if (previous != null) {
+            releaseBytes(previous);
+        }
+        updateGauges();
+    }
+
+    public Entry lookup(String name) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            return lookupLocked(name);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    private Entry lookupLocked(String name) throws IOException {
+        Entry entry = index.get(hash(name));
+        if (entry == null || !nameMatches(entry, name)) {
+            return null;
+        }
+        return entry;
+    }
+
+    // Appelle reader avec le segment et la position des données de la partie ; renvoie null si elle est absente.
+    // Le segment est épinglé pendant l'appel : le compacteur peut le retirer, mais ne le ferme qu'après.
+    // Aucun verrou n'est tenu pendant reader, qui peut donc envoyer la partie sur le réseau.
+    public <T> T read(String name, PartReader<T> reader) throws IOException {
+        Entry entry;
+        FileChannel channel;
+        segmentLock.readLock().lock();
+        try {
+            entry = lookupLocked(name);
+            if (entry == null) {
+                return null;
+            }
+            channel = segments.get(entry.segment);
+            pins.computeIfAbsent(entry.segment, k -> new AtomicInteger()).incrementAndGet();
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+        try {
+            return reader.read(entry, io.apply(channel), entry.offset + entry.headerLength);
+        } finally {
+            unpin(entry.segment);
+        }
+    }
+
+    // Sous le verrou partagé, le compte ne peut pas retomber à zéro pendant que le compacteur retire le segment
+    private void unpin(int segment) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            if (pins.get(segment).decrementAndGet() == 0) {
+                FileChannel channel = retired.remove(segment);
+                if (channel != null) {
+                    pins.remove(segment);
+                    closeSegment(segment, channel);
+                }
+            }
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    private void closeSegment(int id, FileChannel channel) throws IOException {
+        channel.close();
+        Files.deleteIfExists(segmentFile(id).toPath());
+        committer.markDirectoryDirty();
+    }
+
+    // Noms des parties présentes, relus dans les en-têtes de leurs enregistrements
+    public List<String> names() throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            List<Map.Entry<Long, Entry>> entries = index.entries();
+            List<String> names = new ArrayList<>(entries.size());
+            for (Map.Entry<Long, Entry> entry : entries) {
+                names.add(readName(segments.get(entry.getValue().segment), entry.getValue().offset));
+            }
+            return names;
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    public boolean delete(String name) throws IOException {
+        Entry existing = lookup(name);
+        if (existing == null) {
+            return false;
+        }
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        Entry previous = index.remove(hash(name));
+        if (previous == null) {
+            return false;
+        }
+        long[] location = reserve(headerLength(nameBytes.length));
+        try {
+            writeFully(segments.get((int) location[0]), header(nameBytes, FLAG_DELETED, 0, 0), location[1]);
+        } finally {
+            pendingWrites.get((int) location[0]).decrementAndGet();
+        }
+        // Une suppression n'attend pas le lot : perdue dans une panne, elle ne fait que ressusciter une
+        // partie que le ramasse-miettes du principal retrouvera comme orpheline
+        committer.markDirty((int) location[0]);
+        releaseBytes(previous);
+        updateGauges();
+        return true;
+    }
+
+    public void startCompactor(long intervalSeconds, double liveRatioThreshold) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "segment-compactor");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compact(liveRatioThreshold);
+            } catch (IOException e) {
+                Metrics.counter("pftp_segment_compaction_errors_total", "disk", label).inc();
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    // Recopie les parties vivantes des segments scellés sous le seuil puis efface ces segments
+    void compact(double liveRatioThreshold) throws IOException {
+        List<Integer> candidates = new ArrayList<>();
+        for (Map.Entry<Integer, FileChannel> segment : segments.entrySet()) {
+            int id = segment.getKey();
+            long size = segment.getValue().size();
+            long live = liveBytes.getOrDefault(id, new AtomicLong()).get();
+            boolean writing = pendingWrites.getOrDefault(id, new AtomicInteger()).get() > 0;
+            if (id != currentSegment() && !writing && size > 0 && (double) live / size < liveRatioThreshold) {
+                candidates.add(id);
+            }
+        }
+        Collections.sort(candidates);
+
+        for (int id : candidates) {
+            FileChannel source = segments.get(id);
+            long reclaimed = source.size();
+            List<Map.Entry<Long, Entry>> live = index.entriesInSegment(id);
+            List<Entry> moved = new ArrayList<>(live.size());
+            Set<Integer> targets = new HashSet<>();
+            try {
+                for (Map.Entry<Long, Entry> entry : live) {
+                    Entry current = entry.getValue();
+                    long recordLength = current.recordLength();
+                    long[] location = reserve(recordLength);
+                    FileChannel target = segments.get((int) location[0]);
+                    moved.add(new Entry((int) location[0], location[1], current.headerLength, current.length, current.checksum));
+                    targets.add((int) location[0]);
+                    // L'en-tête est recopié en premier, marqué en cours jusqu'à ce que l'index adopte la copie
+                    ByteBuffer header = ByteBuffer.allocate(current.headerLength);
+                    readFully(source, header, current.offset);
+                    header.put(4, FLAG_PENDING);
+                    header.flip();
+                    writeFully(target, header, location[1]);
+                    long copied = current.headerLength;
+                    while (copied < recordLength) {
+                        copied += source.transferTo(current.offset + copied, recordLength - copied,
+                                new PositionedChannel(target, location[1] + copied));
+                    }
+                }
+                // Quel que soit le mode de durabilité : l'index ne bascule vers les copies qu'une fois
+                // celles-ci sur disque, et le segment source n'est effacé qu'après l'index et les en-têtes
+                // définitifs des copies
+                for (int target : targets) {
+                    segments.get(target).force(false);
+                }
+                for (int i = 0; i < live.size(); i++) {
+                    Entry copy = moved.get(i);
+                    if (index.replace(live.get(i).getKey(), live.get(i).getValue(), copy)) {
+                        liveBytes.computeIfAbsent(copy.segment, k -> new AtomicLong()).addAndGet(copy.recordLength());
+                        reclaimed -= copy.recordLength();
+                        setFlags(segments.get(copy.segment), copy.offset, (byte) 0);
+                    } else {
+                        // La partie a été réécrite ou supprimée entre-temps : la copie est morte
+                        setFlags(segments.get(copy.segment), copy.offset, FLAG_DELETED);
+                    }
+                }
+                for (int target : targets) {
+                    segments.get(target).force(false);
+                }
+                index.force();
+            } finally {
+                for (Entry copy : moved) {
+                    pendingWrites.get(copy.segment).decrementAndGet();
+                }
+            }
+
+            segmentLock.writeLock().lock();
+            try {
+                segments.remove(id);
+                liveBytes.remove(id);
+                pendingWrites.remove(id);
+                AtomicInteger readers = pins.get(id);
+                if (readers != null && readers.get() > 0) {
+                    retired.put(id, source); // Fermé par unpin
+                } else {
+                    pins.remove(id);
+                    closeSegment(id, source);
+                }
+            } finally {
+                segmentLock.writeLock().unlock();
+            }
+            forceDirectory();
+            Metrics.counter("pftp_segment_compacted_total", "disk", label).inc();
+            Metrics.counter("pftp_segment_reclaimed_bytes_total", "disk", label).add(Math.max(0, reclaimed));
+        }
+        updateGauges();
+    }
+
+    // Réserve une zone à la fin du segment courant ; l'appelant doit décrémenter pendingWrites une fois l'écriture finie
+    private long[] reserve(long recordLength) throws IOException {
+        synchronized (appendLock) {
+            if (currentEnd > 0 && currentEnd + recordLength > maxSegmentSize) {
+                openNewSegment(currentSegment + 1);
+            }
+            long offset = currentEnd;
+            currentEnd += recordLength;
+            pendingWrites.computeIfAbsent(currentSegment, k -> new AtomicInteger()).incrementAndGet();
+            return new long[]{currentSegment, offset};
+        }
+    }
+
+    private int currentSegment() {
+        synchronized (appendLock) {
+            return currentSegment;
+        }
+    }
+
+    private void openNewSegment(int id) throws IOException {
+        segments.put(id, new RandomAccessFile(segmentFile(id), "rw").getChannel());
+        committer.markDirectoryDirty();
+        liveBytes.putIfAbsent(id, new AtomicLong());
+        currentSegment = id;
+        currentEnd = 0;
+    }
+
+    private void openSegments() throws IOException {
+        int last = 0;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Integer id = segmentId(file.getName());
+                if (id != null) {
+                    segments.put(id, new RandomAccessFile(file, "rw").getChannel());
+                    last = Math.max(last, id);
+                }
+            }
+        }
+        if (segments.isEmpty()) {
+            openNewSegment(1);
+        } else {
+            currentSegment = last;
+            currentEnd = segments.get(last).size();
+        }
+    }
+
+    private void openIndex() throws IOException {
+        File indexFile = new File(dir, INDEX_FILE);
+        MappedIndex opened = MappedIndex.open(indexFile);
+        if (opened == null) {
+            opened = rebuildIndex(indexFile);
+        }
+        index = opened;
+        for (Map.Entry<Long, Entry> entry : index.entries()) {
+            Entry e = entry.getValue();
+            liveBytes.computeIfAbsent(e.segment, k -> new AtomicLong()).addAndGet(e.recordLength());
+        }
+    }
+
+    // Reconstruit l'index en rejouant les segments dans l'ordre. Un enregistrement en cours est sauté grâce à
+    // la taille de son en-tête provisoire ; un en-tête illisible fait reprendre au prochain en-tête plausible.
+    private MappedIndex rebuildIndex(File indexFile) throws IOException {
+        Files.deleteIfExists(indexFile.toPath());
+        MappedIndex rebuilt = MappedIndex.create(indexFile, 1024);
+        List<Integer> ids = new ArrayList<>(segments.keySet());
+        Collections.sort(ids);
+        long skipped = 0;
+        for (int id : ids) {
+            FileChannel channel = segments.get(id);
+            long position = 0;
+            long size = channel.size();
+            while (position + 7 <= size) {
+                ByteBuffer record = readHeader(channel, position, size);
+                if (record == null) {
+                    long next = nextHeader(channel, position + 1, size);
+                    if (next < 0) {
+                        break; // Fin des données valides du segment
+                    }
+                    skipped++;
+                    position = next;
+                    continue;
+                }
+                record.getInt();
+                byte flags = record.get();
+                int nameLength = record.getShort() & 0xFFFF;
+                byte[] nameBytes = new byte[nameLength];
+                record.get(nameBytes);
+                long length = record.getLong();
+                long checksum = record.getLong();
+                long hash = hash(new String(nameBytes, StandardCharsets.UTF_8));
+                if (position + headerLength(nameLength) + length > size) {
+                    skipped++;
+                    break; // Enregistrement tronqué en fin de segment
+                }
+                if (flags == 0) {
+                    rebuilt.put(hash, new Entry(id, position, headerLength(nameLength), length, checksum));
+                } else if (flags == FLAG_DELETED && length == 0) {
+                    rebuilt.remove(hash);
+                } else if (flags == FLAG_PENDING) {
+                    skipped++;
+                }
+                position += headerLength(nameLength) + length;
+            }
+        }
+        if (skipped > 0) {
+            Metrics.counter("pftp_segment_rebuild_skipped_total", "disk", label).add(skipped);
+        }
+        return rebuilt;
+    }
+
+    // En-tête complet de l'enregistrement à position (curseur au début), ou null s'il n'en est pas un
+    private static ByteBuffer readHeader(FileChannel channel, long position, long size) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(7);
+        readFully(channel, fixed, position);
+        fixed.flip();
+        if (fixed.getInt() != RECORD_MAGIC) {
+            return null;
+        }
+        byte flags = fixed.get();
+        if (flags < 0 || flags > FLAG_PENDING) {
+            return null;
+        }
+        int headerLength = headerLength(fixed.getShort() & 0xFFFF);
+        if (position + headerLength > size) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(headerLength);
+        readFully(channel, header, position);
+        header.flip();
+        if (header.getLong(headerLength - 16) < 0) {
+            return null;
+        }
+        return header;
+    }
+
+    // Position du prochain en-tête plausible à partir de from, ou -1
+    private static long nextHeader(FileChannel channel, long from, long size) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(64 * 1024);
+        for (long base = from; base + 7 <= size; base += window.capacity() - 3) {
+            window.clear();
+            window.limit((int) Math.min(window.capacity(), size - base));
+            readFully(channel, window, base);
+            for (int i = 0; i + 4 <= window.limit(); i++) {
+                if (window.getInt(i) == RECORD_MAGIC && base + i + 7 <= size && readHeader(channel, base + i, size) != null) {
+                    return base + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    // Les parties stockées une par fichier par les versions précédentes sont intégrées aux segments
+    private void importLegacyFiles() throws IOException {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isFile() && segmentId(file.getName()) == null && !file.getName().startsWith(INDEX_FILE)) {
+                try (FileChannel in = new FileInputStream(file).getChannel()) {
+                    write(file.getName(), file.length(), in);
+                }
+                Files.delete(file.toPath());
+            }
+        }
+    }
+
+    private void releaseBytes(Entry previous) {
+        AtomicLong live = liveBytes.get(previous.segment);
+        if (live != null) {
+            live.addAndGet(-previous.recordLength());
+        }
+    }
+
+    private void updateGauges() {
+        long total = 0;
+        for (AtomicLong live : liveBytes.values()) {
+            total += live.get();
+        }
+        Metrics.gauge("pftp_segment_count", "disk", label).set(segments.size());
+        Metrics.gauge("pftp_segment_live_bytes", "disk", label).set(total);
+        Metrics.gauge("pftp_segment_index_entries", "disk", label).set(index == null ? 0 : index.size());
+    }
+
+    private boolean nameMatches(Entry entry, String name) throws IOException {
+        FileChannel channel = segments.get(entry.segment);
+        return channel != null && name.equals(readName(channel, entry.offset));
+    }
+
+    private static String readName(FileChannel channel, long offset) throws IOException {
+        ByteBuffer fixed = ByteBuffer.allocate(7);
+        readFully(channel, fixed, offset);
+        fixed.flip();
+        if (fixed.getInt() != RECORD_MAGIC) {
+            throw new IOException("Enregistrement invalide à la position " + offset);
+        }
+        fixed.get();
+        ByteBuffer name = ByteBuffer.allocate(fixed.getShort() & 0xFFFF);
+        readFully(channel, name, offset + 7);
+        return new String(name.array(), StandardCharsets.UTF_8);
+    }
+
+    private static ByteBuffer header(byte[] nameBytes, byte flags, long length, long checksum) {
+        ByteBuffer bb = ByteBuffer.allocate(headerLength(nameBytes.length));
+        bb.putInt(RECORD_MAGIC).put(flags).putShort((short) nameBytes.length).put(nameBytes)
+          .putLong(length).putLong(checksum);
+        bb.flip();
+        return bb;
+    }
+
+    private static int headerLength(int nameLength) {
+        return 4 + 1 + 2 + nameLength + 8 + 8;
+    }
+
+    private File segmentFile(int id) {
+        return new File(dir, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static Integer segmentId(String fileName) {
+        if (fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX)) {
+            try {
+                return Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(), fileName.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    // FNV-1a 64 bits sur le nom ; une collision est détectée en relisant le nom dans l'en-tête
+    static long hash(String name) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        return h == 0 ? 1 : h;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            position += channel.write(bb, position);
+        }
+    }
+
+    private static void setFlags(FileChannel channel, long offset, byte flags) throws IOException {
+        writeFully(channel, ByteBuffer.wrap(new byte[]{flags}), offset + 4);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer bb, long position) throws IOException {
+        while (bb.hasRemaining()) {
+            int read = channel.read(bb, position);
+            if (read == -1) {
+                throw new EOFException("Fin de segment inattendue à la position " + position);
+            }
+            position += read;
+        }
+    }
+
+    // Rend durables les créations et suppressions de fichiers du répertoire (nouveaux segments, index remplacé)
+    private void forceDirectory() throws IOException {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return; // Système qui ne permet pas d'ouvrir un répertoire (Windows) : ses entrées sont déjà durables
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    interface Publication {
+        void run() throws IOException;
+    }
+
+    // Validation groupée des écritures. Chaque écrivain dépose sa demande puis attend ; un thread unique
+    // prend le lot, force une seule fois chaque segment concerné, publie les entrées dans l'index, force
+    // l'index (et le répertoire si des fichiers y ont été créés) puis libère tout le lot. L'index ne désigne
+    // ainsi jamais des données absentes du disque, et un accusé de réception vaut écriture durable.
+    // Toute erreur, y compris inattendue, fait échouer le lot entier sans arrêter le thread.
+    private class Committer implements Runnable {
+        private static final int MAX_BATCH = 256; // Écritures au plus par lot
+
+        private final Durability durability;
+        private final long windowNanos;
+        private final List<Commit> queue = new ArrayList<>(); // Protégés par this
+        private final Set<Integer> dirtySegments = new HashSet<>();
+        private boolean directoryDirty;
+
+        Committer(Durability durability, long windowMillis) {
+            this.durability = durability;
+            this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+            if (durability != Durability.NONE) {
+                Thread thread = new Thread(this, "group-commit");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+
+        // Publie l'écriture faite dans segment et rend la main une fois le lot durable
+        void commit(int segment, Publication publication) throws IOException {
+            if (durability == Durability.NONE) {
+                publication.run();
+                return;
+            }
+            Commit commit = new Commit(segment, publication);
+            synchronized (this) {
+                queue.add(commit);
+                notifyAll();
+            }
+            commit.await();
+        }
+
+        synchronized void markDirty(int segment) {
+            if (durability != Durability.NONE) {
+                dirtySegments.add(segment);
+            }
+        }
+
+        synchronized void markDirectoryDirty() {
+            directoryDirty = true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                List<Commit> batch;
+                Set<Integer> dirty;
+                boolean directory;
+                synchronized (this) {
+                    try {
+                        while (queue.isEmpty()) {
+                            wait();
+                        }
+                        long deadline = System.nanoTime() + windowNanos;
+                        for (long left = windowNanos; queue.size() < MAX_BATCH && left > 0; left = deadline - System.nanoTime()) {
+                            TimeUnit.NANOSECONDS.timedWait(this, left);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    batch = new ArrayList<>(queue);
+                    queue.clear();
+                    dirty = new HashSet<>(dirtySegments);
+                    dirtySegments.clear();
+                    directory = directoryDirty;
+                    directoryDirty = false;
+                }
+                long start = System.nanoTime();
+                IOException failure = new IOException("Validation interrompue");
+                try {
+                    failure = flush(batch, dirty, directory);
+                } finally {
+                    for (Commit commit : batch) {
+                        commit.complete(failure);
+                    }
+                }
+                Metrics.recordSince(Metrics.histogram("pftp_group_commit_seconds", "disk", label), start);
+                Metrics.counter("pftp_group_commit_batches_total", "disk", label).inc();
+                Metrics.counter("pftp_group_commit_writes_total", "disk", label).add(batch.size());
+            }
+        }
+
+        private IOException flush(List<Commit> batch, Set<Integer> dirty, boolean directory) {
+            for (Commit commit : batch) {
+                dirty.add(commit.segment);
+            }
+            try {
+                for (int id : dirty) {
+                    FileChannel channel = segments.get(id);
+                    if (channel != null && channel.isOpen()) { // Un segment compacté entre-temps n'a plus rien à forcer
+                        channel.force(false);
+                    }
+                }
+                int capacity = index.capacity();
+                for (Commit commit : batch) {
+                    try {
+                        commit.publication.run();
+                    } catch (IOException | RuntimeException e) {
+                        commit.complete(asIOException(e));
+                    }
+                }
+                index.force();
+                if (directory || index.capacity() != capacity) { // Un agrandissement remplace le fichier d'index
+                    forceDirectory();
+                }
+                return null;
+            } catch (IOException | RuntimeException e) {
+                Metrics.counter("pftp_group_commit_errors_total", "disk", label).inc();
+                return asIOException(e);
+            }
+        }
+
+        private IOException asIOException(Exception e) {
+            return e instanceof IOException ? (IOException) e : new IOException(e);
+        }
+    }
+
+    // Demande de validation d'un écrivain ; seul le premier complete compte
+    private static class Commit {
+        final int segment;
+        final Publication publication;
+        private boolean done;
+        private IOException failure;
+
+        Commit(int segment, Publication publication) {
+            this.segment = segment;
+            this.publication = publication;
+        }
+
+        synchronized void complete(IOException failure) {
+            if (!done) {
+                done = true;
+                this.failure = failure;
+                notifyAll();
+            }
+        }
+
+        synchronized void await() throws IOException {
+            while (!done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Validation interrompue");
+                }
+            }
+            if (failure != null) {
+                throw new IOException("Écriture non rendue durable : " + failure.getMessage(), failure);
+            }
+        }
+    }
+
+    // Canal d'écriture positionnel, pour utiliser FileChannel.transferTo entre deux segments
+    static class PositionedChannel implements java.nio.channels.WritableByteChannel {
+        private final FileChannel target;
+        private long position;
+
+        PositionedChannel(FileChannel target, long position) {
+            this.target = target;
+            this.position = position;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            int written = target.write(src, position);
+            position += written;
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return target.isOpen();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // Table de hachage à adressage ouvert projetée en mémoire.
+    // En-tête (64 octets) : magic, version, capacité, nombre d'entrées, cases occupées (tombes comprises).
+    // Case (40 octets) : hash (long), état et longueur d'en-tête (int), segment (int), position (long),
+    // taille (long), crc (long).
+    static class MappedIndex {
+        private static final int MAGIC = 0x50465849;
+        private static final int VERSION = 1;
+        private static final int HEADER = 64;
+        private static final int SLOT = 40;
+        private static final int EMPTY = 0;
+        private static final int USED = 1;
+        private static final int TOMBSTONE = 2;
+
+        private final File file;
+        private MappedByteBuffer map;
+        private int capacity;
+        private int count;
+        private int occupied;
+
+        private MappedIndex(File file) {
+            this.file = file;
+        }
+
+        static MappedIndex create(File file, int capacity) throws IOException {
+            MappedIndex index = new MappedIndex(file);
+            index.map = mapFile(file, capacity);
+            index.capacity = capacity;
+            index.writeHeader();
+            return index;
+        }
+
+        // Renvoie null si le fichier est absent ou invalide
+        static MappedIndex open(File file) throws IOException {
+            if (!file.exists() || file.length() < HEADER) {
+                return null;
+            }
+            MappedIndex index = new MappedIndex(file);
+            try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+                index.map = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            }
+            if (index.map.getInt(0) != MAGIC || index.map.getInt(4) != VERSION) {
+                return null;
+            }
+            index.capacity = index.map.getInt(8);
+            if (Integer.bitCount(index.capacity) != 1 || file.length() != HEADER + (long) index.capacity * SLOT) {
+                return null;
+            }
+            index.count = index.map.getInt(12);
+            index.occupied = index.map.getInt(16);
+            return index;
+        }
+
+        synchronized Entry get(long hash) {
+            int slot = find(hash);
+            return slot < 0 ? null : entryAt(slot);
+        }
+
+        synchronized Entry put(long hash, Entry entry) throws IOException {
+            if ((occupied + 1) * 10L > capacity * 7L) {
+                resize(count * 10L > capacity * 5L ? capacity * 2 : capacity);
+            }
+            int slot = find(hash);
+            Entry previous = null;
+            if (slot >= 0) {
+                previous = entryAt(slot);
+            } else {
+                slot = insertionSlot(hash);
+                if (state(slot) == EMPTY) {
+                    occupied++;
+                }
+                count++;
+            }
+            writeSlot(slot, hash, USED, entry);
+            writeHeader();
+            return previous;
+        }
+
+        synchronized Entry remove(long hash) {
+            int slot = find(hash);
+            if (slot < 0) {
+                return null;
+            }
+            Entry previous = entryAt(slot);
+            map.putInt(base(slot) + 8, TOMBSTONE);
+            count--;
+            writeHeader();
+            return previous;
+        }
+
+        // Remplace l'entrée seulement si elle pointe encore vers expected (utilisé par le compacteur)
+        synchronized boolean replace(long hash, Entry expected, Entry replacement) {
+            int slot = find(hash);
+            if (slot < 0) {
+                return false;
+            }
+            Entry current = entryAt(slot);
+            if (current.segment != expected.segment || current.offset != expected.offset) {
+                return false;
+            }
+            writeSlot(slot, hash, USED, replacement);
+            return true;
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        synchronized int capacity() {
+            return capacity;
+        }
+
+        // Hors du moniteur : les lectures de l'index n'attendent pas le msync. Une table remplacée entre-temps
+        // par un agrandissement a été forcée par resize.
+        void force() {
+            MappedByteBuffer current;
+            synchronized (this) {
+                current = map;
+            }
+            current.force();
+        }
+
+        synchronized List<Map.Entry<Long, Entry>> entries() {
+            List<Map.Entry<Long, Entry>> entries = new ArrayList<>(count);
+            for (int slot = 0; slot < capacity; slot++) {
+                if (state(slot) == USED) {
+                    entries.add(new AbstractMap.SimpleImmutableEntry<>(map.getLong(base(slot)), entryAt(slot)));
+                }
+            }
+            return entries;
+        }
+
+        synchronized List<Map.Entry<Long, Entry>> entriesInSegment(int segment) {
+            List<Map.Entry<Long, Entry>> entries = new ArrayList<>();
+            for (Map.Entry<Long, Entry> entry : entries()) {
+                if (entry.getValue().segment == segment) {
+                    entries.add(entry);
+                }
+            }
+            return entries;
+        }
+
+        private int find(long hash) {
+            int mask = capacity - 1;
+            for (int i = 0, slot = spread(hash) & mask; i < capacity; i++, slot = (slot + 1) & mask) {
+                int state = state(slot);
+                if (state == EMPTY) {
+                    return -1;
+                }
+                if (state == USED && map.getLong(base(slot)) == hash) {
+                    return slot;
+                }
+            }
+            return -1;
+        }
+
+        private int insertionSlot(long hash) {
+            int mask = capacity - 1;
+            int slot = spread(hash) & mask;
+            while (state(slot) == USED) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void resize(int newCapacity) throws IOException {
+            List<Map.Entry<Long, Entry>> entries = entries();
+            File tmp = new File(file.getPath() + ".tmp");
+            Files.deleteIfExists(tmp.toPath());
+            MappedIndex resized = create(tmp, newCapacity);
+            for (Map.Entry<Long, Entry> entry : entries) {
+                resized.put(entry.getKey(), entry.getValue());
+            }
+            resized.map.force();
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            map = resized.map;
+            capacity = resized.capacity;
+            count = resized.count;
+            occupied = resized.occupied;
+        }
+
+        private static MappedByteBuffer mapFile(File file, int capacity) throws IOException {
+            try (FileChannel channel = new RandomAccessFile(file, "rw").getChannel()) {
+                return channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER + (long) capacity * SLOT);
+            }
+        }
+
+        private void writeHeader() {
+            map.putInt(0, MAGIC);
+            map.putInt(4, VERSION);
+            map.putInt(8, capacity);
+            map.putInt(12, count);
+            map.putInt(16, occupied);
+        }
+
+        private void writeSlot(int slot, long hash, int state, Entry entry) {
+            int base = base(slot);
+            map.putLong(base, hash);
+            map.putInt(base + 12, entry.segment);
+            map.putLong(base + 16, entry.offset);
+            map.putLong(base + 24, entry.length);
+            map.putLong(base + 32, entry.checksum);
+            map.putInt(base + 8, state | entry.headerLength << 8); // état écrit en dernier
+        }
+
+        private Entry entryAt(int slot) {
+            int base = base(slot);
+            return new Entry(map.getInt(base + 12), map.getLong(base + 16), map.getInt(base + 8) >>> 8,
+                    map.getLong(base + 24), map.getLong(base + 32));
+        }
+
+        private int state(int slot) {
+            return map.getInt(base(slot) + 8) & 0xFF;
+        }
+
+        private static int base(int slot) {
+            return HEADER + slot * SLOT;
+        }
+
+        private static int spread(long hash) {
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            return (int) hash;
+        }
+    }
+}
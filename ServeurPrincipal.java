@@ -1,35 +1,112 @@
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32C;
 
 public class ServeurPrincipal {
 
-    private static List<StorageServerInfo> storageServers = Collections.synchronizedList(new ArrayList<>());
+    // Vue immuable des serveurs de stockage, remplacée en bloc à chaque changement de configuration :
+    // les chemins de placement et de lecture la lisent sans verrou et gardent une vue cohérente
+    private static final AtomicReference<ClusterView> clusterView = new AtomicReference<>(new ClusterView(0, Collections.emptyList()));
+    private static final Object membershipLock = new Object(); // Sérialise les rechargements de la configuration
+    private static ShardMap shards; // Part de l'espace de noms tenue par ce principal (-Dshard.peers, -Dshard.index)
     private static final String LOG_FILE = "ServeurPrincipal.log";
     private static final String CONFIG_FILE = "listServer.conf";
+    private static final String MAPPING_FILE = "file_mapping.conf";
+    private static final String REPLICAS_FILE = "replicas.conf"; // Répliques connues, une ligne partie,ip:port
+    private static final String TOMBSTONE_FILE = "tombstones.conf"; // Copies à effacer, une ligne partie,ip:port,échéance
+    private static final Object mappingLock = new Object(); // Sérialise les ajouts et réécritures du mapping
     private static final int BROADCAST_PORT_START = 6001; // Début de la plage de ports pour envoyer les messages de diffusion
     private static final int BROADCAST_PORT_END = 6003; // Fin de la plage de ports pour envoyer les messages de diffusion
     private static final int RESPONSE_PORT_START = 6004; // Début de la plage de ports pour recevoir les réponses des serveurs secondaires
     private static final int RESPONSE_PORT_END = 6006; // Fin de la plage de ports pour recevoir les réponses des serveurs secondaires
     private static final int BROADCAST_INTERVAL = 30; // Intervalle en secondes
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static final Map<String, List<StorageServerInfo>> replicationInfo = new HashMap<>();
+    // Répliques par partie ; les listes sont en copie sur écriture et se lisent sans verrou
+    private static final Map<String, List<StorageServerInfo>> replicationInfo = new ConcurrentHashMap<>();
+    private static final Object replicasLock = new Object(); // Sérialise les modifications de replicationInfo et de replicas.conf
+    private static final int PORT = Integer.getInteger("principal.port", 6000); // Port d'écoute des clients
+    private static final String SEED_SERVERS = System.getProperty("storage.servers", ""); // Serveurs de stockage connus au démarrage (ip:port,ip:port)
+    private static final int METRICS_PORT = Integer.getInteger("metrics.port", 9100); // Port HTTP local des métriques Prometheus
+    private static final Map<String, TransferSession> transferSessions = new ConcurrentHashMap<>(); // Transferts multi-flux en cours
+    private static final Map<String, PlacementPlan> placementPlans = new ConcurrentHashMap<>(); // Uploads directs en attente de validation
+    private static final int INLINE_THRESHOLD = Integer.getInteger("inline.threshold", 64 * 1024); // Taille maximale d'un fichier conservé dans les métadonnées
+    private static InlineStore inlineStore;
+    private static final long SESSION_TIMEOUT_MS = 10 * 60 * 1000; // Durée d'inactivité avant abandon d'un transfert multi-flux
+    private static final long REBALANCE_INTERVAL = Long.getLong("rebalance.interval", 300); // Secondes entre deux passes de rééquilibrage
+    private static final long REBALANCE_RATE = Long.getLong("rebalance.rate", 20L * 1024 * 1024); // Débit moyen maximal des déplacements (octets/s)
+    private static final int REBALANCE_MAX_MOVES = Integer.getInteger("rebalance.max.moves", 100); // Déplacements au plus par passe
+    private static final long REBALANCE_GRACE_MS = Long.getLong("rebalance.grace", 120) * 1000; // Délai avant suppression de l'ancienne copie
+    private static final double REBALANCE_TOLERANCE = 0.1; // Écart toléré à la charge moyenne
+    private static final int REPLICATION_FACTOR = Integer.getInteger("replication.factor", 2); // Copies vivantes visées par partie
+    private static final long REPAIR_INTERVAL = Long.getLong("repair.interval", 30); // Secondes entre deux passes de réparation
+    private static final int REPAIR_PARALLELISM = Integer.getInteger("repair.parallelism", 2); // Copies de réparation simultanées
+    private static final long NODE_DEAD_AFTER_MS = Long.getLong("repair.dead.after", 60) * 1000; // Échecs continus avant de considérer un serveur perdu
+    private static final long GC_INTERVAL = Long.getLong("gc.interval", 10); // Secondes entre deux passes du ramasse-miettes
+    private static final int GC_BATCH = Integer.getInteger("gc.batch", 500); // Parties au plus par commande DELETE_PARTS
+    private static final long GC_DELETE_GRACE_MS = Long.getLong("gc.grace", 30) * 1000; // Délai laissé aux téléchargements en cours d'un fichier supprimé
+    private static final long GC_MAX_BACKOFF_MS = 10 * 60 * 1000; // Attente maximale avant de retenter un serveur injoignable
+    private static final long GC_SCRUB_INTERVAL = Long.getLong("gc.scrub.interval", 3600); // Secondes entre deux recherches d'orphelins
+    private static final int SYNC_BLOCK_SIZE = Integer.getInteger("sync.block.size", 0); // Blocs des uploads différentiels (0 = selon la taille du fichier)
+    private static final long GC_ORPHAN_AGE_MS = Long.getLong("gc.orphan.age", 3600) * 1000; // Ancienneté minimale d'un orphelin avant effacement
+    private static final Map<String, Long> nodeFailingSince = new ConcurrentHashMap<>(); // Premier échec de la série en cours, par serveur
+    // Serveurs de listServer.conf pas encore confirmés depuis le démarrage (tous au départ, puis ceux restés muets
+    // à la sonde) : gardés dans le fichier mais hors de la vue, jusqu'à ce qu'ils répondent à une diffusion ou à PING
+    private static final Set<String> unconfirmedServers = ConcurrentHashMap.newKeySet();
 
     public static void main(String[] args) {
-        resetConfigFile(CONFIG_FILE); // Réinitialiser le fichier de configuration
-        startServer();
+        try {
+            shards = ShardMap.fromProperties();
+        } catch (IllegalArgumentException e) {
+            log("Configuration des shards invalide : " + e.getMessage());
+            System.out.println("Configuration des shards invalide : " + e.getMessage());
+            return;
+        }
+        Metrics.gauge("pftp_shard_count").set(Math.max(1, shards.peers().size()));
+        // Redémarrage à chaud : le catalogue (mapping, répliques, tombes, petits fichiers) est relu du disque et le
+        // port client s'ouvre aussitôt pour les lectures ; les serveurs de la dernière composition connue
+        // (listServer.conf) n'entrent dans la vue, et ne reçoivent de nouvelles parties, qu'une fois sondés
+        createConfigFileIfMissing(CONFIG_FILE);
+        holdKnownServers();
+        seedConfigFile();
+        try {
+            inlineStore = new InlineStore(new File("inline_files.dat"));
+        } catch (IOException e) {
+            log("Impossible de charger les petits fichiers : " + e.getMessage());
+            System.out.println("Impossible de charger les petits fichiers : " + e.getMessage());
+            return;
+        }
+        loadReplicationInfo();
+        GarbageCollector.load();
         loadStorageServerConfig(CONFIG_FILE);
+        startMetricsServer();
+        startServer();
+        // Les réponses doivent trouver l'écoute ouverte avant la première diffusion
+        listenForResponses();
+        confirmKnownServers();
         startPeriodicBroadcast();
-        listenForResponses(); // Démarrer l'écoute des réponses une seule fois
+        startSessionCleanup();
+        Rebalancer.start();
+        Repairer.start();
+        GarbageCollector.start();
     }
 
-    private static void log(String message) {
+    static void log(String message) {
         String timestamp = dateFormat.format(new Date());
         try (FileWriter fw = new FileWriter(LOG_FILE, true);
              BufferedWriter bw = new BufferedWriter(fw)) {
@@ -40,20 +117,137 @@ public class ServeurPrincipal {
         }
     }
 
-    private static void resetConfigFile(String configFilePath) {
-        try (FileWriter fw = new FileWriter(configFilePath, false)) {
-            // Ouvrir le fichier en mode écriture pour le vider
-            log("Fichier de configuration réinitialisé.");
-            System.out.println("Fichier de configuration réinitialisé.");
+    // Le fichier de configuration est conservé d'un démarrage à l'autre ; il n'est créé qu'au premier
+    private static void createConfigFileIfMissing(String configFilePath) {
+        try {
+            if (new File(configFilePath).createNewFile()) {
+                log("Fichier de configuration créé.");
+            }
+        } catch (IOException e) {
+            log("Erreur lors de la création du fichier de configuration : " + e.getMessage());
+            System.out.println("Erreur lors de la création du fichier de configuration : " + e.getMessage());
+        }
+    }
+
+    // Au démarrage, aucun serveur de la dernière composition connue (ni de -Dstorage.servers) n'entre dans la
+    // vue avant d'avoir répondu à la sonde : un upload n'est jamais placé sur un serveur disparu entre-temps
+    private static void holdKnownServers() {
+        try {
+            for (String line : Files.readAllLines(Paths.get(CONFIG_FILE))) {
+                if (!line.trim().isEmpty()) {
+                    unconfirmedServers.add(line.trim());
+                }
+            }
+        } catch (IOException e) {
+            log("Erreur lors de la lecture de la configuration : " + e.getMessage());
+        }
+        for (String server : SEED_SERVERS.split(",")) {
+            if (!server.trim().isEmpty()) {
+                unconfirmedServers.add(server.trim());
+            }
+        }
+    }
+
+    // Sonde en parallèle les serveurs connus et fait entrer dans la vue ceux qui répondent. Les autres restent
+    // dans listServer.conf pour être réintégrés.
+    private static void confirmKnownServers() {
+        List<StorageServerInfo> known = new ArrayList<>();
+        for (String server : unconfirmedServers) {
+            known.add(parseServer(server));
+        }
+        long start = System.nanoTime();
+        List<StorageServerInfo> silent = unresponsive(known);
+        for (StorageServerInfo server : known) {
+            if (silent.contains(server)) {
+                log("Serveur de stockage muet au démarrage, écarté de la vue : " + server);
+            } else {
+                unconfirmedServers.remove(server.toString());
+            }
+        }
+        Metrics.gauge("pftp_storage_servers_unconfirmed").set(unconfirmedServers.size());
+        loadStorageServerConfig(CONFIG_FILE);
+        log("Serveurs de stockage connus sondés en " + (System.nanoTime() - start) / 1_000_000 + " ms : "
+                + (known.size() - silent.size()) + "/" + known.size() + " joignables");
+    }
+
+    // Réintègre les serveurs écartés au démarrage qui répondent de nouveau (à chaque tour de diffusion,
+    // pour ceux qui ne sont connus que par -Dstorage.servers)
+    private static void retryUnconfirmedServers() {
+        List<StorageServerInfo> pending = new ArrayList<>();
+        for (String server : unconfirmedServers) {
+            pending.add(parseServer(server));
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+        pending.removeAll(unresponsive(pending));
+        for (StorageServerInfo server : pending) {
+            readmitServer(server.toString());
+        }
+    }
+
+    private static void readmitServer(String server) {
+        if (unconfirmedServers.remove(server)) {
+            Metrics.gauge("pftp_storage_servers_unconfirmed").set(unconfirmedServers.size());
+            log("Serveur de stockage de nouveau joignable, réintégré : " + server);
+            loadStorageServerConfig(CONFIG_FILE);
+            Rebalancer.requestPass();
+        }
+    }
+
+    // Sonde chaque serveur dans son propre thread et renvoie ceux qui n'ont pas répondu à PING
+    private static List<StorageServerInfo> unresponsive(List<StorageServerInfo> servers) {
+        List<StorageServerInfo> silent = Collections.synchronizedList(new ArrayList<>());
+        List<Thread> probes = new ArrayList<>();
+        for (StorageServerInfo server : servers) {
+            Thread probe = new Thread(() -> {
+                if (!ping(server)) {
+                    silent.add(server);
+                }
+            }, "probe-" + server);
+            probe.setDaemon(true);
+            probe.start();
+            probes.add(probe);
+        }
+        for (Thread probe : probes) {
+            try {
+                probe.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        return new ArrayList<>(silent);
+    }
+
+    // PING d'un serveur de stockage ; le résultat alimente markNodeHealth
+    private static boolean ping(StorageServerInfo server) {
+        try (Socket socket = TransferIO.connect(server.ip, server.port, 2000);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+            socket.setSoTimeout(5000);
+            dos.writeUTF("PING");
+            boolean alive = "PONG".equals(dis.readUTF());
+            markNodeHealth(server.toString(), alive);
+            return alive;
         } catch (IOException e) {
-            log("Erreur lors de la réinitialisation du fichier de configuration : " + e.getMessage());
-            System.out.println("Erreur lors de la réinitialisation du fichier de configuration : " + e.getMessage());
+            markNodeHealth(server.toString(), false);
+            return false;
+        }
+    }
+
+    // Ajoute les serveurs fournis par -Dstorage.servers, pour les déploiements où la diffusion UDP n'est pas possible
+    private static void seedConfigFile() {
+        for (String server : SEED_SERVERS.split(",")) {
+            if (!server.trim().isEmpty()) {
+                storeConfig(server.trim());
+            }
         }
     }
 
     private static void loadStorageServerConfig(String configFilePath) {
-        synchronized (storageServers) {
-            storageServers.clear(); // Clear the list before loading new configuration
+        synchronized (membershipLock) {
+            List<StorageServerInfo> servers = new ArrayList<>();
             try (BufferedReader br = new BufferedReader(new FileReader(configFilePath))) {
                 String line;
                 while ((line = br.readLine()) != null) {
@@ -61,9 +255,12 @@ public class ServeurPrincipal {
                     if (parts.length == 2) {
                         String ip = parts[0];
                         int port = Integer.parseInt(parts[1]);
+                        if (unconfirmedServers.contains(line)) {
+                            continue;
+                        }
                         StorageServerInfo serverInfo = new StorageServerInfo(ip, port);
-                        if (!storageServers.contains(serverInfo)) {
-                            storageServers.add(serverInfo);
+                        if (!servers.contains(serverInfo)) {
+                            servers.add(serverInfo);
                             log("Configuration mise à jour avec : " + ip + ":" + port);
                             System.out.println("Configuration mise à jour avec : " + ip + ":" + port);
                         } else {
@@ -72,26 +269,44 @@ public class ServeurPrincipal {
                         }
                     }
                 }
-                log("Configuration des serveurs de stockage chargée.");
-                System.out.println("Configuration des serveurs de stockage chargée : " + storageServers.size() + " serveurs.");
-                for (StorageServerInfo storageServerInfo : storageServers) {
-                    System.out.println(storageServerInfo);
-                }
             } catch (IOException e) {
                 log("Erreur lors du chargement de la configuration : " + e.getMessage());
                 System.out.println("Erreur lors du chargement de la configuration : " + e.getMessage());
+                return;
             }
+
+            ClusterView previous = clusterView.get();
+            if (!previous.servers.equals(servers)) {
+                ClusterView view = new ClusterView(previous.version + 1, servers);
+                clusterView.set(view);
+                Metrics.gauge("pftp_cluster_view_version").set(view.version);
+            }
+            Metrics.gauge("pftp_storage_servers").set(servers.size());
+            log("Configuration des serveurs de stockage chargée (vue " + clusterView.get().version + ").");
+            System.out.println("Configuration des serveurs de stockage chargée : " + servers.size() + " serveurs.");
+            for (StorageServerInfo storageServerInfo : servers) {
+                System.out.println(storageServerInfo);
+            }
+        }
+    }
+
+    private static void startMetricsServer() {
+        try {
+            Metrics.startHttpServer(METRICS_PORT);
+            log("Métriques exposées sur http://localhost:" + METRICS_PORT + "/metrics");
+        } catch (IOException e) {
+            log("Impossible de démarrer le serveur de métriques : " + e.getMessage());
         }
     }
 
     private static void startServer() {
         new Thread(() -> {
             System.out.println("new thread");
-            try (ServerSocket serverSocket = new ServerSocket(6000)) {
+            try (ServerSocket serverSocket = TransferIO.listen(PORT)) {
                 log("Serveur principal démarré sur le port " + serverSocket.getLocalPort());
 
                 while (true) {
-                    Socket clientSocket = serverSocket.accept();
+                    Socket clientSocket = TransferIO.accept(serverSocket);
                     new ClientHandler(clientSocket).start();
                 }
             } catch (IOException e) {
@@ -104,9 +319,34 @@ public class ServeurPrincipal {
         ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
         scheduler.scheduleAtFixedRate(() -> {
             sendBroadcastMessage();
+            retryUnconfirmedServers();
         }, 0, BROADCAST_INTERVAL, TimeUnit.SECONDS);
     }
 
+    // Abandonne les transferts multi-flux dont le client a disparu
+    private static void startSessionCleanup() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+        scheduler.scheduleAtFixedRate(() -> {
+            long now = System.currentTimeMillis();
+            for (Map.Entry<String, TransferSession> entry : transferSessions.entrySet()) {
+                if (now - entry.getValue().lastAccess > SESSION_TIMEOUT_MS) {
+                    transferSessions.remove(entry.getKey());
+                    entry.getValue().close();
+                    if (entry.getValue().file != null) {
+                        entry.getValue().file.delete();
+                    }
+                    log("Session de transfert expirée : " + entry.getKey());
+                }
+            }
+            for (Map.Entry<String, PlacementPlan> entry : placementPlans.entrySet()) {
+                if (now - entry.getValue().createdAt > SESSION_TIMEOUT_MS && placementPlans.remove(entry.getKey()) != null) {
+                    ClientHandler.discardPlan(entry.getValue());
+                    log("Plan de placement expiré : " + entry.getKey());
+                }
+            }
+        }, 1, 1, TimeUnit.MINUTES);
+    }
+
     private static void sendBroadcastMessage() {
         new Thread(() -> {
             for (int port = BROADCAST_PORT_START; port <= BROADCAST_PORT_END; port++) {
@@ -138,6 +378,7 @@ public class ServeurPrincipal {
                             try {
                                 DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet.getData(), 0, packet.getLength()));
                                 String response = dis.readUTF();
+                                readmitServer(response); // Un serveur qui répond à la diffusion est vivant
                                 storeConfig(response);
                             } catch (IOException e) {
                                 // Handle exception silently
@@ -162,6 +403,7 @@ public class ServeurPrincipal {
                     log("Configuration mise à jour avec : " + response);
                     System.out.println("Configuration mise à jour avec : " + response);
                 }
+                Rebalancer.requestPass(); // Le nouveau serveur doit recevoir une part des données existantes
             } else {
                 log("Configuration déjà présente : " + response);
                 System.out.println("Configuration déjà présente : " + response);
@@ -176,10 +418,91 @@ public class ServeurPrincipal {
 
     private static void storeReplicationInfo(String fileName, String ip, int port) {
         StorageServerInfo serverInfo = new StorageServerInfo(ip, port);
-        replicationInfo.computeIfAbsent(fileName, k -> new ArrayList<>()).add(serverInfo);
+        synchronized (replicasLock) {
+            List<StorageServerInfo> replicas = replicationInfo.computeIfAbsent(fileName, k -> new CopyOnWriteArrayList<>());
+            if (replicas.contains(serverInfo)) {
+                return;
+            }
+            replicas.add(serverInfo);
+            try (FileWriter fw = new FileWriter(REPLICAS_FILE, true);
+                 BufferedWriter bw = new BufferedWriter(fw)) {
+                bw.write(fileName + "," + serverInfo);
+                bw.newLine();
+            } catch (IOException e) {
+                log("Erreur lors de l'enregistrement de la réplique de " + fileName + " : " + e.getMessage());
+            }
+        }
         log("Information de réplication stockée pour " + fileName + " : " + serverInfo);
     }
 
+    // Oublie les répliques d'une partie (toutes si server est null) et renvoie celles qui ont été retirées
+    private static List<StorageServerInfo> removeReplicationInfo(String fileName, StorageServerInfo server) {
+        synchronized (replicasLock) {
+            List<StorageServerInfo> replicas = replicationInfo.get(fileName);
+            if (replicas == null) {
+                return Collections.emptyList();
+            }
+            List<StorageServerInfo> removed = new ArrayList<>();
+            for (StorageServerInfo replica : replicas) {
+                if (server == null || replica.equals(server)) {
+                    removed.add(replica);
+                }
+            }
+            replicas.removeAll(removed);
+            if (replicas.isEmpty()) {
+                replicationInfo.remove(fileName);
+            }
+            if (!removed.isEmpty()) {
+                try {
+                    List<String> lines = new ArrayList<>();
+                    for (Map.Entry<String, List<StorageServerInfo>> entry : replicationInfo.entrySet()) {
+                        for (StorageServerInfo replica : entry.getValue()) {
+                            lines.add(entry.getKey() + "," + replica);
+                        }
+                    }
+                    File tempFile = new File(REPLICAS_FILE + ".tmp");
+                    Files.write(tempFile.toPath(), lines);
+                    Files.move(tempFile.toPath(), Paths.get(REPLICAS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (IOException e) {
+                    log("Erreur lors de la réécriture des répliques : " + e.getMessage());
+                }
+            }
+            return removed;
+        }
+    }
+
+    // Recharge les répliques connues avant un redémarrage, puis réécrit le fichier sans doublons
+    private static void loadReplicationInfo() {
+        File file = new File(REPLICAS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        synchronized (replicasLock) {
+            try {
+                List<String> lines = new ArrayList<>();
+                for (String line : Files.readAllLines(file.toPath())) {
+                    int separator = line.indexOf(',');
+                    String[] address = line.substring(separator + 1).split(":");
+                    if (separator < 0 || address.length != 2) {
+                        continue;
+                    }
+                    StorageServerInfo serverInfo = new StorageServerInfo(address[0], Integer.parseInt(address[1]));
+                    List<StorageServerInfo> replicas = replicationInfo.computeIfAbsent(line.substring(0, separator), k -> new CopyOnWriteArrayList<>());
+                    if (!replicas.contains(serverInfo)) {
+                        replicas.add(serverInfo);
+                        lines.add(line);
+                    }
+                }
+                File tempFile = new File(REPLICAS_FILE + ".tmp");
+                Files.write(tempFile.toPath(), lines);
+                Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                log("Répliques rechargées : " + lines.size());
+            } catch (IOException | RuntimeException e) {
+                log("Erreur lors du chargement des répliques : " + e.getMessage());
+            }
+        }
+    }
+
     static class ClientHandler extends Thread {
         private final Socket clientSocket;
 
@@ -189,6 +512,8 @@ public class ServeurPrincipal {
 
         @Override
         public void run() {
+            Metrics.Gauge inFlight = Metrics.gauge("pftp_connections_in_flight");
+            inFlight.inc();
             try (
                 DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
                 DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
@@ -196,6 +521,7 @@ public class ServeurPrincipal {
                 while (true) {
                     String operation = dis.readUTF();
                     log("Commande reçue : " + operation);
+                    long start = System.nanoTime();
                     switch (operation) {
                         case "list":
                             listFiles(dos);
@@ -207,115 +533,445 @@ public class ServeurPrincipal {
 
                         case "download":
                             String fileName = dis.readUTF();
-                            downloadFile(fileName, dos);
+                            if (checkShard(fileName, dos)) {
+                                downloadFile(fileName, dos);
+                            }
+                            break;
+
+                        case "UPLOAD_BEGIN":
+                            beginUpload(dis, dos);
+                            break;
+
+                        case "UPLOAD_RANGE":
+                            receiveRange(dis, dos);
+                            break;
+
+                        case "UPLOAD_COMMIT":
+                            commitUpload(dis, dos);
+                            break;
+
+                        case "DOWNLOAD_BEGIN":
+                            String fileToRead = dis.readUTF();
+                            if (checkShard(fileToRead, dos)) {
+                                beginDownload(fileToRead, dos);
+                            }
+                            break;
+
+                        case "DOWNLOAD_RANGE":
+                            sendRange(dis, dos);
+                            break;
+
+                        case "DOWNLOAD_END":
+                            endDownload(dis, dos);
+                            break;
+
+                        case "SYNC_BEGIN":
+                            syncFile(dis, dos);
+                            break;
+
+                        case "PLACE_UPLOAD":
+                            placeUpload(dis, dos);
+                            break;
+
+                        case "COMMIT_UPLOAD":
+                            commitPlacedUpload(dis, dos);
+                            break;
+
+                        case "LOCATE":
+                            String fileToLocate = dis.readUTF();
+                            if (checkShard(fileToLocate, dos)) {
+                                locateFile(fileToLocate, dos);
+                            }
+                            break;
+
+                        case "IF_NONE_MATCH":
+                            conditionalRead(dis, dos);
                             break;
 
                         case "DELETE_FILE":
                             String fileToDelete = dis.readUTF();
-                            handleDeleteFile(fileToDelete, dos);
+                            if (checkShard(fileToDelete, dos)) {
+                                handleDeleteFile(fileToDelete, dos);
+                            }
                             break;
 
                         case "REPLICATION_INFO":
                             String replicatedFileName = dis.readUTF();
                             String replicatedServerIp = dis.readUTF();
                             int replicatedServerPort = dis.readInt();
-                            storeReplicationInfo(replicatedFileName, replicatedServerIp, replicatedServerPort);
+                            String owner = shards.ownerOfPart(replicatedFileName);
+                            if (owner != null && !shards.ownsPart(replicatedFileName)) {
+                                // Les serveurs de stockage n'écrivent qu'à un principal : la réplique revient au shard de la partie
+                                forwardReplicationInfo(owner, replicatedFileName, replicatedServerIp, replicatedServerPort);
+                            } else {
+                                storeReplicationInfo(replicatedFileName, replicatedServerIp, replicatedServerPort);
+                            }
                             dos.writeUTF("Replication info stored successfully");
                             break;
 
+                        case "SHARD_MAP":
+                            // 0 principal : espace de noms non partitionné
+                            List<String> peers = shards.isSharded() ? shards.peers() : Collections.emptyList();
+                            dos.writeUTF("OK");
+                            dos.writeInt(peers.size());
+                            for (String peer : peers) {
+                                dos.writeUTF(peer);
+                            }
+                            break;
+
+                        case "STATS":
+                            Metrics.writeStats(dos);
+                            break;
+
+                        case "SET_QOS":
+                            setQos(dis, dos);
+                            break;
+
                         default:
                             dos.writeUTF("Commande non reconnue");
                             log("Commande non reconnue envoyée au client");
+                            operation = "unknown"; // Ne pas créer une série par commande inconnue
                             break;
                     }
+                    Metrics.counter("pftp_commands_total", "command", operation).inc();
+                    Metrics.recordSince(Metrics.histogram("pftp_command_duration_seconds", "command", operation), start);
                 }
             } catch (IOException e) {
                 log("Connexion client terminée : " + e.getMessage());
+            } finally {
+                inFlight.dec();
+            }
+        }
+
+        // Les transferts faits pour le compte de ce client (y compris vers et depuis les serveurs de stockage)
+        // sont comptés dans sa part de bande passante
+        private BandwidthScheduler.Stream foregroundStream() {
+            return BandwidthScheduler.open(BandwidthScheduler.TrafficClass.FOREGROUND, clientSocket.getInetAddress().getHostAddress());
+        }
+
+        // Vrai si la taille annoncée par le client est utilisable ; sinon l'erreur lui est renvoyée
+        private boolean checkSize(long fileSize, DataOutputStream dos) throws IOException {
+            if (fileSize >= 0) {
+                return true;
+            }
+            dos.writeUTF("Taille de fichier invalide : " + fileSize);
+            log("Taille de fichier invalide reçue : " + fileSize);
+            return false;
+        }
+
+        // Vrai si ce principal possède le fichier ; sinon le client est renvoyé vers le shard propriétaire
+        private boolean checkShard(String fileName, DataOutputStream dos) throws IOException {
+            if (shards.owns(fileName)) {
+                return true;
+            }
+            dos.writeUTF("WRONG_SHARD " + shards.ownerOf(fileName));
+            Metrics.counter("pftp_shard_redirects_total").inc();
+            log("Commande pour " + fileName + " renvoyée vers " + shards.ownerOf(fileName));
+            return false;
+        }
+
+        private static void forwardReplicationInfo(String owner, String partName, String ip, int port) {
+            StorageServerInfo ownerInfo = parseServer(owner);
+            try (Socket socket = TransferIO.connect(ownerInfo.ip, ownerInfo.port);
+                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+                dos.writeUTF("REPLICATION_INFO");
+                dos.writeUTF(partName);
+                dos.writeUTF(ip);
+                dos.writeInt(port);
+                dis.readUTF();
+            } catch (IOException e) {
+                // La réplique sera retrouvée comme orpheline puis recréée par la réparation
+                log("Erreur lors du transfert de la réplique de " + partName + " vers " + owner + " : " + e.getMessage());
+            }
+        }
+
+        // Modifie une limite de bande passante (clé vide : simple lecture de la configuration)
+        private void setQos(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String key = dis.readUTF();
+            long value = dis.readLong();
+            try {
+                dos.writeUTF("OK " + (key.isEmpty() ? BandwidthScheduler.describe() : BandwidthScheduler.set(key, value)));
+                if (!key.isEmpty()) {
+                    log("Limite de bande passante modifiée : " + key + "=" + value);
+                }
+            } catch (IllegalArgumentException e) {
+                dos.writeUTF(e.getMessage());
             }
         }
 
         private void receiveAndDistributeFile(DataInputStream dis, DataOutputStream dos) throws IOException {
             String fileName = dis.readUTF();
             long fileSize = dis.readLong();
+            if (!checkSize(fileSize, dos)) {
+                return;
+            }
+            if (!shards.owns(fileName)) {
+                TransferIO.receive(clientSocket, null, 0, fileSize, null, null); // Le contenu suit l'en-tête : le consommer avant de répondre
+                checkShard(fileName, dos);
+                return;
+            }
             log("Réception du fichier : " + fileName + " de taille : " + fileSize);
             System.out.println("Réception du fichier : " + fileName + " de taille : " + fileSize);
 
-            File tempFile = new File("temp_" + fileName);
-            try (FileOutputStream fos = new FileOutputStream(tempFile)) {
-                byte[] buffer = new byte[4096];
-                long totalRead = 0;
-                int read;
-
-                while (totalRead < fileSize && (read = dis.read(buffer)) != -1) {
-                    fos.write(buffer, 0, read);
-                    totalRead += read;
-                    System.out.println("Réception en cours : " + totalRead + "/" + fileSize + " octets");
+            // Petit fichier : conservé en mémoire et dans les métadonnées, sans fichier temporaire ni serveur de stockage
+            if (fileSize <= INLINE_THRESHOLD) {
+                byte[] data = readInline(dis, fileSize);
+                synchronized (mappingLock) {
+                    inlineStore.put(fileName, data);
+                    replaceFileEntries(fileName, Collections.emptyList(), null); // Version précédente stockée en parties
                 }
+                dos.writeUTF("Fichier distribué avec succès.");
+                log("Fichier " + fileName + " conservé dans les métadonnées (" + fileSize + " octets)");
+                return;
+            }
+
+            // Un nom unique par upload : les parties d'une nouvelle version ne réutilisent pas ceux de l'ancienne
+            File tempFile = new File("temp_" + UUID.randomUUID() + "_" + fileName);
+            try (FileChannel channel = new FileOutputStream(tempFile).getChannel();
+                 BandwidthScheduler.Stream stream = foregroundStream()) {
+                TransferIO.receive(clientSocket, channel, 0, fileSize, null, stream);
             }
 
             log("Fichier reçu : " + fileName);
             System.out.println("Fichier reçu : " + fileName);
 
-            int activeServers = storageServers.size();
-            System.out.println("Nombre de serveurs actifs : " + activeServers);
-            long minPartSize = 1 * 1024 * 1024; // 1 Mo en octets (ajusté pour des tests plus petits)
-            int partCount = (int) Math.ceil((double) fileSize / minPartSize);
+            try {
+                distributeFile(tempFile, fileName, fileSize);
+            } catch (IOException e) {
+                dos.writeUTF("Erreur lors de la distribution : " + e.getMessage());
+                log("Erreur lors de la distribution de " + fileName + " : " + e.getMessage());
+                return;
+            }
 
-            // S'assurer que le nombre de parts ne dépasse pas le nombre de serveurs actifs
-            partCount = Math.min(partCount, activeServers);
+            dos.writeUTF("Fichier distribué avec succès.");
+            log("Message de confirmation envoyé au client");
+            System.out.println("Message de confirmation envoyé au client");
+        }
 
-            // S'assurer que partCount est au moins 1
-            partCount = Math.max(partCount, 1);
+        // Contenu d'un petit fichier, lu par tranches comptées dans la part de bande passante du client
+        private byte[] readInline(DataInputStream dis, long fileSize) throws IOException {
+            byte[] data = new byte[(int) fileSize];
+            try (BandwidthScheduler.Stream stream = foregroundStream()) {
+                for (int offset = 0; offset < data.length; ) {
+                    int length = Math.min(16 * 1024, data.length - offset);
+                    dis.readFully(data, offset, length);
+                    stream.accept(length);
+                    offset += length;
+                }
+            }
+            return data;
+        }
+
+        // Découpe le fichier reçu, envoie les parties aux serveurs de stockage puis remplace d'un coup les entrées
+        // du fichier dans le mapping (les parties de la version précédente sont enterrées). Si une partie ne peut
+        // pas être envoyée, celles déjà stockées sont enterrées et l'ancienne version reste en place.
+        private void distributeFile(File tempFile, String fileName, long fileSize) throws IOException {
+            if (fileSize <= INLINE_THRESHOLD) {
+                byte[] data = Files.readAllBytes(tempFile.toPath());
+                tempFile.delete();
+                synchronized (mappingLock) {
+                    inlineStore.put(fileName, data);
+                    replaceFileEntries(fileName, Collections.emptyList(), null);
+                }
+                return;
+            }
+
+            List<StorageServerInfo> servers = clusterView.get().servers; // Même vue pour le découpage et l'envoi
+            if (servers.isEmpty()) {
+                tempFile.delete();
+                throw new IOException("Aucun serveur de stockage disponible.");
+            }
+            int activeServers = servers.size();
+            System.out.println("Nombre de serveurs actifs : " + activeServers);
+            int partCount = partCountFor(fileSize, activeServers);
             System.out.println("Nombre de parties : " + partCount);
 
             List<File> parts = splitFile(tempFile, partCount);
             System.out.println("Fichier divisé en " + parts.size() + " parties.");
 
-            for (int i = 0; i < parts.size(); i++) {
-                if (i < storageServers.size()) {
-                    sendFileToStorageServer(parts.get(i), storageServers.get(i), fileName);
-                } else {
-                    log("Pas assez de serveurs pour distribuer toutes les parties.");
-                    System.out.println("Pas assez de serveurs pour distribuer toutes les parties.");
+            Metrics.Gauge pendingParts = Metrics.gauge("pftp_parts_pending");
+            pendingParts.add(parts.size());
+            List<String> lines = new ArrayList<>();
+            List<String[]> created = new ArrayList<>();
+            try {
+                for (int i = 0; i < parts.size(); i++) {
+                    try {
+                        // partCountFor ne crée jamais plus de parties que de serveurs dans la vue
+                        String line = sendFileToStorageServer(parts.get(i), servers.get(i), fileName);
+                        String[] tokens = line.split(",");
+                        lines.add(line);
+                        created.add(new String[]{tokens[1], tokens[2]});
+                    } finally {
+                        pendingParts.dec();
+                    }
+                }
+                synchronized (mappingLock) {
+                    // Une nouvelle version stockée en parties remplace une éventuelle version en ligne
+                    inlineStore.remove(fileName);
+                    replaceFileEntries(fileName, lines, null);
+                }
+            } catch (IOException e) {
+                discardParts(created);
+                throw e;
+            } finally {
+                tempFile.delete();
+                for (File part : parts) {
+                    part.delete();
                 }
             }
+        }
+
+        // Transferts multi-flux : le client ouvre une session puis envoie ou lit des plages
+        // d'octets sur plusieurs connexions en parallèle.
+        private void beginUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            if (!checkSize(fileSize, dos) || !checkShard(fileName, dos)) {
+                return;
+            }
+            String sessionId = UUID.randomUUID().toString();
+            File tempFile = new File("temp_" + sessionId + "_" + fileName);
+            try (RandomAccessFile raf = new RandomAccessFile(tempFile, "rw")) {
+                raf.setLength(fileSize);
+            }
+            transferSessions.put(sessionId, new TransferSession(fileName, tempFile, fileSize));
+            dos.writeUTF("OK:" + sessionId);
+            log("Session d'upload " + sessionId + " ouverte pour " + fileName + " (" + fileSize + " octets)");
+        }
+
+        private void receiveRange(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String sessionId = dis.readUTF();
+            long offset = dis.readLong();
+            long length = dis.readLong();
+            TransferSession session = transferSessions.get(sessionId);
+
+            // Les octets annoncés doivent être consommés même si la session est invalide
+            boolean valid = session != null && offset >= 0 && offset + length <= session.size;
+            try (BandwidthScheduler.Stream stream = foregroundStream()) {
+                TransferIO.receive(clientSocket, valid ? session.channel() : null, offset, length, null, stream);
+            }
 
-            tempFile.delete();
-            for (File part : parts) {
-                part.delete();
+            if (valid) {
+                session.lastAccess = System.currentTimeMillis();
+                dos.writeUTF("OK");
+            } else {
+                dos.writeUTF("Session ou plage invalide : " + sessionId);
             }
+        }
 
+        private void commitUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String sessionId = dis.readUTF();
+            TransferSession session = transferSessions.remove(sessionId);
+            if (session == null) {
+                dos.writeUTF("Session inconnue : " + sessionId);
+                return;
+            }
+            session.close();
+            try {
+                distributeFile(session.file, session.fileName, session.size);
+            } catch (IOException e) {
+                dos.writeUTF("Erreur lors de la distribution : " + e.getMessage());
+                log("Erreur lors de la distribution de " + session.fileName + " : " + e.getMessage());
+                return;
+            }
             dos.writeUTF("Fichier distribué avec succès.");
-            log("Message de confirmation envoyé au client");
-            System.out.println("Message de confirmation envoyé au client");
+            log("Session d'upload " + sessionId + " validée pour " + session.fileName);
         }
 
-        private void updateFileMapping(String fileName, String partName, StorageServerInfo serverInfo) {
-            try (FileWriter fw = new FileWriter("file_mapping.conf", true);
-                 BufferedWriter bw = new BufferedWriter(fw)) {
-                bw.write(fileName + "," + partName + "," + serverInfo.ip + ":" + serverInfo.port);
-                bw.newLine();
-                log("Fichier de suivi mis à jour pour " + partName);
+        private void beginDownload(String fileName, DataOutputStream dos) throws IOException {
+            try {
+                String sessionId = UUID.randomUUID().toString();
+                byte[] inline = inlineStore.get(fileName);
+                if (inline != null) {
+                    transferSessions.put(sessionId, new TransferSession(fileName, inline));
+                    dos.writeUTF("Downloading:" + fileName);
+                    dos.writeUTF(sessionId);
+                    dos.writeLong(inline.length);
+                    return;
+                }
+                File assembledFile = assembleFileFromParts(fileName);
+                File sessionFile = new File(assembledFile.getParentFile(), sessionId + "_" + fileName);
+                if (!assembledFile.renameTo(sessionFile)) {
+                    throw new IOException("Impossible de préparer " + sessionFile);
+                }
+                transferSessions.put(sessionId, new TransferSession(fileName, sessionFile, sessionFile.length()));
+                dos.writeUTF("Downloading:" + fileName);
+                dos.writeUTF(sessionId);
+                dos.writeLong(sessionFile.length());
+                log("Session de téléchargement " + sessionId + " ouverte pour " + fileName);
             } catch (IOException e) {
-                log("Erreur lors de la mise à jour du fichier de suivi : " + e.getMessage());
+                dos.writeUTF("Erreur lors du téléchargement : " + e.getMessage());
+                log("Erreur lors du téléchargement du fichier : " + e.getMessage());
+            }
+        }
+
+        private void sendRange(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String sessionId = dis.readUTF();
+            long offset = dis.readLong();
+            long length = dis.readLong();
+            TransferSession session = transferSessions.get(sessionId);
+            if (session == null || offset < 0 || offset + length > session.size) {
+                dos.writeUTF("Session ou plage invalide : " + sessionId);
+                return;
+            }
+            session.lastAccess = System.currentTimeMillis();
+            dos.writeUTF("OK");
+
+            if (session.inlineData != null) {
+                dos.write(session.inlineData, (int) offset, (int) length);
+                dos.flush();
+                return;
+            }
+            try (BandwidthScheduler.Stream stream = foregroundStream()) {
+                TransferIO.send(session.channel(), offset, length, clientSocket, null, stream);
+            }
+        }
+
+        private void endDownload(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String sessionId = dis.readUTF();
+            TransferSession session = transferSessions.remove(sessionId);
+            if (session != null) {
+                session.close();
+                if (session.file != null) {
+                    session.file.delete();
+                }
             }
+            dos.writeUTF("OK");
+        }
+
+        static int partCountFor(long fileSize, int activeServers) {
+            long minPartSize = 1 * 1024 * 1024; // 1 Mo en octets (ajusté pour des tests plus petits)
+            int partCount = (int) Math.ceil((double) fileSize / minPartSize);
+
+            // S'assurer que le nombre de parts ne dépasse pas le nombre de serveurs actifs
+            partCount = Math.min(partCount, activeServers);
+
+            // S'assurer que partCount est au moins 1
+            return Math.max(partCount, 1);
+        }
+
+        // Une ligne du mapping : fichier,partie,ip:port,taille,crc32c (les deux dernières colonnes
+        // sont absentes des entrées écrites par les anciennes versions)
+        private static String mappingLine(String fileName, String partName, StorageServerInfo serverInfo, long size, long checksum) {
+            return fileName + "," + partName + "," + serverInfo.ip + ":" + serverInfo.port + "," + size + "," + checksum;
+        }
+
+        static List<File> splitFile(File file, int partCount) throws IOException {
+            return splitFile(file, partCount, BufferPool.sizeFor(file.length() / partCount));
         }
 
-        private List<File> splitFile(File file, int partCount) throws IOException {
+        static List<File> splitFile(File file, int partCount, int bufferSize) throws IOException {
             List<File> parts = new ArrayList<>();
             long partSize = file.length() / partCount;
             long remainingBytes = file.length() % partCount;
 
-            try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(file))) {
+            try (FileChannel in = new FileInputStream(file).getChannel()) {
                 for (int i = 0; i < partCount; i++) {
                     File partFile = new File(file.getName() + ".part" + i);
-                    try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(partFile))) {
+                    try (FileChannel out = new FileOutputStream(partFile).getChannel()) {
                         long bytesToWrite = partSize + (i < remainingBytes ? 1 : 0);
-                        byte[] buffer = new byte[4096];
-                        int bytesRead;
-                        while (bytesToWrite > 0 && (bytesRead = bis.read(buffer, 0, (int) Math.min(buffer.length, bytesToWrite))) != -1) {
-                            bos.write(buffer, 0, bytesRead);
-                        }
+                        TransferIO.copy(in, out, 0, bytesToWrite, null, null, bufferSize);
                     }
                     parts.add(partFile);
                 }
@@ -323,37 +979,530 @@ public class ServeurPrincipal {
             return parts;
         }
 
-        private void sendFileToStorageServer(File part, StorageServerInfo serverInfo, String fileName) {
-            try (Socket socket = new Socket(serverInfo.ip, serverInfo.port);
+        // Renvoie la ligne du mapping de la partie, une fois celle-ci sauvegardée par le serveur de stockage
+        private String sendFileToStorageServer(File part, StorageServerInfo serverInfo, String fileName) throws IOException {
+            long start = System.nanoTime();
+            String partName = shards.partName(part.getName());
+            try (Socket socket = TransferIO.connect(serverInfo.ip, serverInfo.port);
                  DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                 FileInputStream fis = new FileInputStream(part)) {
+                 DataInputStream dis = new DataInputStream(socket.getInputStream());
+                 FileChannel channel = new FileInputStream(part).getChannel();
+                 BandwidthScheduler.Stream stream = foregroundStream()) {
 
                 dos.writeUTF("store");
-                dos.writeUTF(part.getName());
+                dos.writeUTF(partName);
                 dos.writeLong(part.length());
 
-                byte[] buffer = new byte[4096];
-                int read;
-                while ((read = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, read);
-                }
+                CRC32C crc = new CRC32C();
+                TransferIO.send(channel, 0, part.length(), socket, crc, stream);
 
-                log("Partie " + part.getName() + " envoyée à " + serverInfo);
-                updateFileMapping(fileName, part.getName(), serverInfo);
+                String response = dis.readUTF();
+                if (!response.startsWith("Fichier reçu")) {
+                    throw new IOException(response);
+                }
+                Metrics.recordTransfer("to_storage", serverInfo.toString(), part.length(), start);
+                markNodeHealth(serverInfo.toString(), true);
+                log("Partie " + partName + " envoyée à " + serverInfo);
+                return mappingLine(fileName, partName, serverInfo, part.length(), crc.getValue());
             } catch (IOException e) {
-                log("Erreur lors de l'envoi de " + part.getName() + " à " + serverInfo + " : " + e.getMessage());
+                markNodeHealth(serverInfo.toString(), false);
+                log("Erreur lors de l'envoi de " + partName + " à " + serverInfo + " : " + e.getMessage());
+                throw new IOException("Envoi de " + partName + " à " + serverInfo + " impossible : " + e.getMessage(), e);
             }
         }
 
-        private void listFiles(DataOutputStream dos) throws IOException {
-            try (BufferedReader br = new BufferedReader(new FileReader("file_mapping.conf"))) {
-                Set<String> files = new HashSet<>();
-                String line;
-                while ((line = br.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length >= 1) {
-                        files.add(parts[0]);
-                    }
+        // Upload différentiel (voir DeltaSync) d'une nouvelle version d'un fichier stocké en parties.
+        // SYNC_BEGIN <fichier> <taille> : le principal répond OK, la taille de bloc, le nombre de blocs et les
+        // signatures des blocs complets de chaque partie (calculées par les serveurs de stockage), puis lit le
+        // delta du client sur la même connexion. NO_BASE si le fichier n'est pas stocké en parties (le client
+        // l'envoie alors normalement) ; INLINE si la nouvelle version est un petit fichier, dont le client
+        // envoie aussitôt le contenu. Chaque nouvelle partie est composée par un serveur qui détient l'ancienne
+        // partie dont elle reprend les blocs (COMPOSE_PART) : seuls les octets littéraux traversent le réseau.
+        private void syncFile(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            if (!checkSize(fileSize, dos) || !checkShard(fileName, dos)) {
+                return;
+            }
+            if (fileSize <= INLINE_THRESHOLD) {
+                dos.writeUTF("INLINE");
+                byte[] data = readInline(dis, fileSize);
+                synchronized (mappingLock) {
+                    inlineStore.put(fileName, data);
+                    replaceFileEntries(fileName, Collections.emptyList(), null);
+                }
+                dos.writeUTF("Fichier distribué avec succès.");
+                log("Fichier " + fileName + " conservé dans les métadonnées (" + fileSize + " octets)");
+                return;
+            }
+
+            List<String> mappingLines = new File(MAPPING_FILE).exists() ? Files.readAllLines(Paths.get(MAPPING_FILE)) : new ArrayList<>();
+            List<String[]> base = new ArrayList<>();
+            for (String line : mappingLines) {
+                String[] tokens = line.split(",");
+                if (tokens.length >= 3 && tokens[0].equals(fileName)) {
+                    base.add(tokens);
+                }
+            }
+            if (base.isEmpty()) {
+                dos.writeUTF("NO_BASE");
+                return;
+            }
+            String baseVersion = partsVersion(mappingLines, fileName);
+            if (baseVersion == null) {
+                dos.writeUTF("Parties sans somme de contrôle : synchronisation impossible pour " + fileName);
+                return;
+            }
+
+            long baseSize = 0;
+            for (String[] tokens : base) {
+                baseSize += Long.parseLong(tokens[3]);
+            }
+            int blockSize = SYNC_BLOCK_SIZE > 0 ? SYNC_BLOCK_SIZE : DeltaSync.blockSizeFor(baseSize);
+            List<byte[]> signatures = new ArrayList<>();
+            int[] firstBlock = new int[base.size() + 1]; // Premier bloc de chaque partie dans la numérotation globale
+            for (int i = 0; i < base.size(); i++) {
+                byte[] partSignatures = fetchSignatures(base.get(i), blockSize);
+                if (partSignatures == null) {
+                    dos.writeUTF("Signatures indisponibles pour " + base.get(i)[1]);
+                    return;
+                }
+                signatures.add(partSignatures);
+                firstBlock[i + 1] = firstBlock[i] + partSignatures.length / DeltaSync.SIGNATURE_LENGTH;
+            }
+            dos.writeUTF("OK");
+            dos.writeInt(blockSize);
+            dos.writeInt(firstBlock[base.size()]);
+            for (byte[] partSignatures : signatures) {
+                dos.write(partSignatures);
+            }
+            log("Synchronisation de " + fileName + " : " + firstBlock[base.size()] + " blocs de " + blockSize + " octets");
+
+            String syncId = UUID.randomUUID().toString();
+            File spool = new File("temp_" + syncId + "_" + fileName);
+            try (FileChannel spoolChannel = new RandomAccessFile(spool, "rw").getChannel();
+                 BandwidthScheduler.Stream stream = foregroundStream()) {
+                List<SyncPiece> pieces = new ArrayList<>();
+                String error = readDelta(dis, firstBlock, blockSize, fileSize, spoolChannel, stream, pieces);
+                dos.writeUTF(error != null ? error : commitSync(fileName, baseVersion, syncId, base, pieces, spoolChannel, stream));
+            } finally {
+                spool.delete();
+            }
+        }
+
+        // Signatures d'une partie (ligne du mapping) lues sur sa copie principale ou, à défaut, une réplique
+        private byte[] fetchSignatures(String[] entry, int blockSize) {
+            for (String location : locationsOf(entry)) {
+                StorageServerInfo server = parseServer(location);
+                try (Socket socket = TransferIO.connect(server.ip, server.port);
+                     DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                     DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                    dos.writeUTF("PART_SIGNATURES");
+                    dos.writeUTF(entry[1]);
+                    dos.writeInt(blockSize);
+                    String response = dis.readUTF();
+                    if (!"PART_FOUND".equals(response) || dis.readLong() != Long.parseLong(entry[3])) {
+                        log("Signatures de " + entry[1] + " indisponibles sur " + location + " : " + response);
+                        continue;
+                    }
+                    byte[] signatures = new byte[dis.readInt() * DeltaSync.SIGNATURE_LENGTH];
+                    dis.readFully(signatures);
+                    markNodeHealth(location, true);
+                    return signatures;
+                } catch (IOException e) {
+                    markNodeHealth(location, false);
+                    log("Erreur lors de la lecture des signatures de " + entry[1] + " sur " + location + " : " + e.getMessage());
+                }
+            }
+            return null;
+        }
+
+        // Lit le delta jusqu'à OP_END : les copies deviennent des plages des anciennes parties et les littéraux
+        // sont mis de côté dans spool. Renvoie null, ou la cause du refus une fois le delta consommé.
+        private String readDelta(DataInputStream dis, int[] firstBlock, int blockSize, long fileSize, FileChannel spool,
+                                 BandwidthScheduler.Stream stream, List<SyncPiece> pieces) throws IOException {
+            int blockCount = firstBlock[firstBlock.length - 1];
+            long spooled = 0;
+            long size = 0;
+            String error = null;
+            while (true) {
+                byte op = dis.readByte();
+                if (op == DeltaSync.OP_COPY) {
+                    int first = dis.readInt();
+                    int count = dis.readInt();
+                    if (first < 0 || count <= 0 || count > blockCount - first) {
+                        error = "Blocs invalides : " + first + "+" + count;
+                        continue;
+                    }
+                    int part = 0;
+                    for (int block = first; block < first + count; block++) {
+                        while (firstBlock[part + 1] <= block) {
+                            part++;
+                        }
+                        long offset = (long) (block - firstBlock[part]) * blockSize;
+                        SyncPiece last = pieces.isEmpty() ? null : pieces.get(pieces.size() - 1);
+                        if (last != null && last.part == part && last.offset + last.length == offset) {
+                            last.length += blockSize;
+                        } else {
+                            pieces.add(new SyncPiece(part, offset, blockSize));
+                        }
+                    }
+                    size += (long) count * blockSize;
+                } else if (op == DeltaSync.OP_LITERAL) {
+                    int length = dis.readInt();
+                    if (length < 0) {
+                        throw new IOException("Littéral de longueur négative");
+                    }
+                    TransferIO.receive(clientSocket, spool, spooled, length, null, stream);
+                    SyncPiece last = pieces.isEmpty() ? null : pieces.get(pieces.size() - 1);
+                    if (last != null && last.part < 0) {
+                        last.length += length;
+                    } else {
+                        pieces.add(new SyncPiece(-1, spooled, length));
+                    }
+                    spooled += length;
+                    size += length;
+                } else if (op == DeltaSync.OP_END) {
+                    long declared = dis.readLong();
+                    if (error == null && (declared != size || size != fileSize)) {
+                        error = "Taille reconstruite " + size + " au lieu de " + fileSize;
+                    }
+                    return error;
+                } else {
+                    throw new IOException("Opération de delta inconnue : " + op);
+                }
+            }
+        }
+
+        // Compose les nouvelles parties puis bascule le mapping ; renvoie la réponse destinée au client
+        private String commitSync(String fileName, String baseVersion, String syncId, List<String[]> base,
+                                  List<SyncPiece> pieces, FileChannel spool, BandwidthScheduler.Stream stream) throws IOException {
+            // Une nouvelle partie par suite de plages d'une même ancienne partie, avec les littéraux qui les
+            // entourent (ceux du début vont à la première) : une modification sur place garde le découpage
+            // et les serveurs de l'ancienne version
+            List<List<SyncPiece>> groups = new ArrayList<>();
+            List<List<String>> candidates = new ArrayList<>();
+            List<SyncPiece> group = new ArrayList<>();
+            int anchor = -1;
+            for (SyncPiece piece : pieces) {
+                if (piece.part >= 0 && anchor >= 0 && piece.part != anchor) {
+                    groups.add(group);
+                    candidates.add(locationsOf(base.get(anchor)));
+                    group = new ArrayList<>();
+                }
+                if (piece.part >= 0) {
+                    anchor = piece.part;
+                }
+                group.add(piece);
+            }
+            if (anchor >= 0) {
+                groups.add(group);
+                candidates.add(locationsOf(base.get(anchor)));
+            } else {
+                // Aucun bloc repris : les littéraux sont répartis comme un upload normal
+                List<StorageServerInfo> servers = clusterView.get().servers;
+                if (servers.isEmpty()) {
+                    return "Aucun serveur de stockage disponible.";
+                }
+                SyncPiece literal = pieces.get(0);
+                int partCount = partCountFor(literal.length, servers.size());
+                long offset = 0;
+                for (int i = 0; i < partCount; i++) {
+                    long length = literal.length / partCount + (i < literal.length % partCount ? 1 : 0);
+                    groups.add(Collections.singletonList(new SyncPiece(-1, offset, length)));
+                    candidates.add(Collections.singletonList(servers.get(i).toString()));
+                    offset += length;
+                }
+            }
+
+            List<String> lines = new ArrayList<>();
+            List<String[]> created = new ArrayList<>();
+            long copied = 0;
+            for (int i = 0; i < groups.size(); i++) {
+                String partName = shards.partName(syncId + "_" + fileName + ".part" + i);
+                long length = 0;
+                for (SyncPiece piece : groups.get(i)) {
+                    length += piece.length;
+                    copied += piece.part >= 0 ? piece.length : 0;
+                }
+                String server = null;
+                long checksum = 0;
+                for (String candidate : candidates.get(i)) {
+                    try {
+                        checksum = composePart(candidate, partName, length, groups.get(i), base, spool, stream);
+                        server = candidate;
+                        break;
+                    } catch (IOException e) {
+                        log("Composition de " + partName + " impossible sur " + candidate + " : " + e.getMessage());
+                    }
+                }
+                if (server == null) {
+                    discardParts(created);
+                    return "Impossible de composer la partie " + i + " de " + fileName;
+                }
+                created.add(new String[]{partName, server});
+                lines.add(fileName + "," + partName + "," + server + "," + length + "," + checksum);
+            }
+
+            synchronized (mappingLock) {
+                if (replaceFileEntries(fileName, lines, baseVersion) < 0) {
+                    discardParts(created);
+                    return "Le fichier " + fileName + " a changé pendant la synchronisation";
+                }
+            }
+            long literalBytes = spool.size();
+            Metrics.counter("pftp_sync_bytes_total", "kind", "literal").add(literalBytes);
+            Metrics.counter("pftp_sync_bytes_total", "kind", "copied").add(copied);
+            log("Fichier " + fileName + " synchronisé : " + literalBytes + " octets reçus, " + copied + " repris de l'ancienne version");
+            return "Fichier distribué avec succès.";
+        }
+
+        // Copie principale puis répliques d'une partie (ligne du mapping)
+        private static List<String> locationsOf(String[] entry) {
+            List<String> locations = new ArrayList<>();
+            locations.add(entry[2]);
+            List<StorageServerInfo> replicas = replicationInfo.get(entry[1]);
+            if (replicas != null) {
+                for (StorageServerInfo replica : replicas) {
+                    locations.add(replica.toString());
+                }
+            }
+            return locations;
+        }
+
+        // Fait composer une partie par un serveur de stockage et renvoie son CRC32C
+        private long composePart(String server, String partName, long length, List<SyncPiece> pieces, List<String[]> base,
+                                 FileChannel spool, BandwidthScheduler.Stream stream) throws IOException {
+            StorageServerInfo info = parseServer(server);
+            long start = System.nanoTime();
+            try (Socket socket = TransferIO.connect(info.ip, info.port);
+                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                 DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+                dos.writeUTF("COMPOSE_PART");
+                dos.writeUTF(partName);
+                dos.writeLong(length);
+                dos.writeInt(pieces.size());
+                long sent = 0;
+                for (SyncPiece piece : pieces) {
+                    if (piece.part >= 0) {
+                        dos.writeByte(DeltaSync.OP_COPY);
+                        dos.writeUTF(base.get(piece.part)[1]);
+                        dos.writeLong(piece.offset);
+                        dos.writeLong(piece.length);
+                    } else {
+                        dos.writeByte(DeltaSync.OP_LITERAL);
+                        dos.writeLong(piece.length);
+                        dos.flush();
+                        TransferIO.send(spool, piece.offset, piece.length, socket, null, stream);
+                        sent += piece.length;
+                    }
+                }
+                dos.flush();
+                String response = dis.readUTF();
+                if (!"SUCCESS".equals(response)) {
+                    throw new IOException(response);
+                }
+                long checksum = dis.readLong();
+                Metrics.recordTransfer("to_storage", server, sent, start);
+                markNodeHealth(server, true);
+                log("Partie " + partName + " composée sur " + server + " (" + sent + " octets envoyés sur " + length + ")");
+                return checksum;
+            } catch (ConnectException e) {
+                markNodeHealth(server, false);
+                throw e;
+            }
+        }
+
+        // Enterre les parties d'un plan de placement refusé ou expiré, que le client a pu écrire en partie
+        static void discardPlan(PlacementPlan plan) {
+            List<String[]> created = new ArrayList<>();
+            for (PlannedPart part : plan.parts) {
+                created.add(new String[]{part.name, part.server.toString()});
+            }
+            discardParts(created);
+        }
+
+        // Enterre les parties d'une synchronisation abandonnée, avec les répliques déjà signalées
+        private static void discardParts(List<String[]> created) {
+            List<String[]> copies = new ArrayList<>(created);
+            for (String[] part : created) {
+                for (StorageServerInfo replica : removeReplicationInfo(part[0], null)) {
+                    copies.add(new String[]{part[0], replica.toString()});
+                }
+            }
+            try {
+                GarbageCollector.tombstone(copies, 0);
+            } catch (IOException e) {
+                log("Erreur lors de l'abandon des parties synchronisées : " + e.getMessage());
+            }
+        }
+
+        // Mode plan de placement : le principal indique où écrire chaque partie, le client l'envoie
+        // directement au serveur de stockage puis valide la liste des parties.
+        private void placeUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String fileName = dis.readUTF();
+            long fileSize = dis.readLong();
+            if (!checkSize(fileSize, dos) || !checkShard(fileName, dos)) {
+                return;
+            }
+
+            if (fileSize <= INLINE_THRESHOLD) {
+                dos.writeUTF("INLINE"); // Le client doit utiliser la commande upload
+                return;
+            }
+            List<StorageServerInfo> servers = clusterView.get().servers;
+            if (servers.isEmpty()) {
+                dos.writeUTF("Aucun serveur de stockage disponible.");
+                return;
+            }
+            int partCount = partCountFor(fileSize, servers.size());
+            String uploadId = UUID.randomUUID().toString();
+            PlacementPlan plan = new PlacementPlan(fileName);
+            long partSize = fileSize / partCount;
+            long remainingBytes = fileSize % partCount;
+            long offset = 0;
+            for (int i = 0; i < partCount; i++) {
+                long length = partSize + (i < remainingBytes ? 1 : 0);
+                plan.parts.add(new PlannedPart(shards.partName(uploadId + "_" + fileName + ".part" + i), offset, length, servers.get(i)));
+                offset += length;
+            }
+            placementPlans.put(uploadId, plan);
+
+            dos.writeUTF("OK:" + uploadId);
+            dos.writeInt(plan.parts.size());
+            for (PlannedPart part : plan.parts) {
+                dos.writeUTF(part.name);
+                dos.writeLong(part.offset);
+                dos.writeLong(part.length);
+                dos.writeUTF(part.server.toString());
+            }
+            log("Plan de placement " + uploadId + " : " + fileName + " en " + partCount + " parties");
+        }
+
+        private void commitPlacedUpload(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String uploadId = dis.readUTF();
+            int count = dis.readInt();
+            long[] sizes = new long[count];
+            long[] checksums = new long[count];
+            for (int i = 0; i < count; i++) {
+                sizes[i] = dis.readLong();
+                checksums[i] = dis.readLong();
+            }
+
+            PlacementPlan plan = placementPlans.remove(uploadId);
+            if (plan == null) {
+                dos.writeUTF("Plan de placement inconnu : " + uploadId);
+                return;
+            }
+            if (count != plan.parts.size()) {
+                discardPlan(plan);
+                dos.writeUTF("Nombre de parties incorrect : " + count + " au lieu de " + plan.parts.size());
+                return;
+            }
+
+            // Vérifier auprès de chaque serveur que la partie est présente, complète et intacte
+            for (int i = 0; i < count; i++) {
+                PlannedPart part = plan.parts.get(i);
+                long[] info = queryPartInfo(part.server, part.name);
+                if (info == null || info[0] != part.length || sizes[i] != part.length || info[1] != checksums[i]) {
+                    discardPlan(plan);
+                    dos.writeUTF("Vérification échouée pour " + part.name + " sur " + part.server);
+                    log("Validation refusée pour " + uploadId + " : partie " + part.name + " invalide");
+                    return;
+                }
+            }
+
+            // Toutes les parties sont publiées d'un coup et remplacent celles d'une version précédente
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                PlannedPart part = plan.parts.get(i);
+                lines.add(mappingLine(plan.fileName, part.name, part.server, part.length, checksums[i]));
+            }
+            synchronized (mappingLock) {
+                inlineStore.remove(plan.fileName);
+                replaceFileEntries(plan.fileName, lines, null);
+            }
+            dos.writeUTF("Fichier distribué avec succès.");
+            log("Upload direct validé pour " + plan.fileName + " (" + count + " parties)");
+        }
+
+        // Renvoie la liste des parties d'un fichier, avec leur position, taille, somme de contrôle et répliques
+        private void locateFile(String fileName, DataOutputStream dos) throws IOException {
+            if (inlineStore.contains(fileName)) {
+                dos.writeUTF("INLINE"); // Contenu servi directement par le principal
+                return;
+            }
+            List<String[]> entries = new ArrayList<>();
+            try (BufferedReader br = new BufferedReader(new FileReader(MAPPING_FILE))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] tokens = line.split(",");
+                    if (tokens.length >= 3 && tokens[0].equals(fileName)) {
+                        entries.add(tokens);
+                    }
+                }
+            } catch (FileNotFoundException e) {
+                // Aucun fichier stocké pour l'instant
+            }
+
+            if (entries.isEmpty()) {
+                dos.writeUTF("Aucune partie trouvée pour " + fileName);
+                return;
+            }
+            dos.writeUTF("OK");
+            dos.writeInt(entries.size());
+            for (String[] tokens : entries) {
+                dos.writeUTF(tokens[1]);
+                dos.writeLong(tokens.length >= 5 ? Long.parseLong(tokens[3]) : -1);
+                dos.writeLong(tokens.length >= 5 ? Long.parseLong(tokens[4]) : -1);
+                List<String> locations = new ArrayList<>();
+                locations.add(tokens[2]);
+                List<StorageServerInfo> replicas = replicationInfo.get(tokens[1]);
+                if (replicas != null) {
+                    for (StorageServerInfo replica : replicas) {
+                        locations.add(replica.toString());
+                    }
+                }
+                dos.writeInt(locations.size());
+                for (String location : locations) {
+                    dos.writeUTF(location);
+                }
+            }
+        }
+
+        // Taille et CRC32C d'une partie sur un serveur de stockage, ou null si elle est absente
+        static long[] queryPartInfo(StorageServerInfo server, String partName) {
+            try (Socket socket = TransferIO.connect(server.ip, server.port);
+                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+                dos.writeUTF("PART_INFO");
+                dos.writeUTF(partName);
+                dos.flush();
+                if (!"PART_FOUND".equals(dis.readUTF())) {
+                    return null;
+                }
+                markNodeHealth(server.toString(), true);
+                return new long[]{dis.readLong(), dis.readLong()};
+            } catch (IOException e) {
+                markNodeHealth(server.toString(), false);
+                log("Erreur lors de la vérification de " + partName + " sur " + server + " : " + e.getMessage());
+                return null;
+            }
+        }
+
+        private void listFiles(DataOutputStream dos) throws IOException {
+            Set<String> files = new HashSet<>(inlineStore.names());
+            if (!new File(MAPPING_FILE).exists()) {
+                dos.writeUTF("Fichiers disponibles : " + String.join(", ", files));
+                return;
+            }
+            try (BufferedReader br = new BufferedReader(new FileReader(MAPPING_FILE))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split(",");
+                    if (parts.length >= 1) {
+                        files.add(parts[0]);
+                    }
                 }
                 dos.writeUTF("Fichiers disponibles : " + String.join(", ", files));
                 log("Liste des fichiers envoyée au client");
@@ -365,16 +1514,21 @@ public class ServeurPrincipal {
 
         private void downloadFile(String fileName, DataOutputStream dos) {
             try {
+                byte[] inline = inlineStore.get(fileName);
+                if (inline != null) {
+                    dos.writeUTF("Downloading:" + fileName);
+                    dos.writeLong(inline.length);
+                    dos.write(inline);
+                    log("Fichier " + fileName + " servi depuis les métadonnées");
+                    return;
+                }
                 File assembledFile = assembleFileFromParts(fileName);
                 dos.writeUTF("Downloading:" + fileName);
                 dos.writeLong(assembledFile.length());
 
-                try (FileInputStream fis = new FileInputStream(assembledFile)) {
-                    byte[] buffer = new byte[4096];
-                    int read;
-                    while ((read = fis.read(buffer)) != -1) {
-                        dos.write(buffer, 0, read);
-                    }
+                try (FileChannel channel = new FileInputStream(assembledFile).getChannel();
+                     BandwidthScheduler.Stream stream = foregroundStream()) {
+                    TransferIO.send(channel, 0, channel.size(), clientSocket, null, stream);
                 }
                 log("Fichier " + fileName+" téléchargé par le client");
             } catch (IOException e) {
@@ -386,18 +1540,90 @@ public class ServeurPrincipal {
             }
         }
 
-        private File assembleFileFromParts(String requestedFile) throws IOException {
-            List<String> mappingLines = Files.readAllLines(Paths.get("file_mapping.conf"));
-            List<String> partsToAssemble = new ArrayList<>();
-            Map<String, String> partToServerMap = new HashMap<>();
+        // Lecture conditionnelle : IF_NONE_MATCH <version connue> <download|DOWNLOAD_BEGIN|LOCATE> <fichier>.
+        // Si la version n'a pas changé, NOT_MODIFIED sans lire aucune partie ; sinon MODIFIED <version>
+        // ("" si le fichier n'a pas de version) suivi de la réponse normale de la commande.
+        private void conditionalRead(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String known = dis.readUTF();
+            String command = dis.readUTF();
+            String fileName = dis.readUTF();
+            if (!"download".equals(command) && !"DOWNLOAD_BEGIN".equals(command) && !"LOCATE".equals(command)) {
+                dos.writeUTF("Commande non conditionnable : " + command);
+                return;
+            }
+            if (!checkShard(fileName, dos)) {
+                return;
+            }
+            String version = fileVersion(fileName);
+            if (version != null && version.equals(known)) {
+                dos.writeUTF("NOT_MODIFIED");
+                Metrics.counter("pftp_conditional_reads_total", "result", "not_modified").inc();
+                log("Fichier " + fileName + " inchangé (version " + version + ")");
+                return;
+            }
+            Metrics.counter("pftp_conditional_reads_total", "result", "modified").inc();
+            dos.writeUTF("MODIFIED");
+            dos.writeUTF(version != null ? version : "");
+            if ("download".equals(command)) {
+                downloadFile(fileName, dos);
+            } else if ("DOWNLOAD_BEGIN".equals(command)) {
+                beginDownload(fileName, dos);
+            } else {
+                locateFile(fileName, dos);
+            }
+        }
+
+        // Version d'un fichier, "taille-crc" en hexadécimal : pour un fichier en parties, le crc32c porte sur
+        // (nom, taille, crc32c) de chaque partie dans l'ordre du mapping ; pour un petit fichier, sur son contenu.
+        // null si le fichier est absent ou si une partie n'a pas de somme de contrôle (ancienne entrée).
+        static String fileVersion(String fileName) throws IOException {
+            byte[] inline = inlineStore.get(fileName);
+            CRC32C crc = new CRC32C();
+            if (inline != null) {
+                crc.update(inline);
+                return Long.toHexString(inline.length) + "-" + Long.toHexString(crc.getValue());
+            }
+            if (!new File(MAPPING_FILE).exists()) {
+                return null;
+            }
+            return partsVersion(Files.readAllLines(Paths.get(MAPPING_FILE)), fileName);
+        }
 
+        static String partsVersion(List<String> mappingLines, String fileName) {
+            CRC32C crc = new CRC32C();
+            long size = 0;
+            boolean found = false;
+            for (String line : mappingLines) {
+                String[] tokens = line.split(",");
+                if (tokens.length < 3 || !tokens[0].equals(fileName)) {
+                    continue;
+                }
+                if (tokens.length < 5) {
+                    return null;
+                }
+                crc.update((tokens[1] + "," + tokens[3] + "," + tokens[4] + "\n").getBytes(StandardCharsets.UTF_8));
+                size += Long.parseLong(tokens[3]);
+                found = true;
+            }
+            return found ? Long.toHexString(size) + "-" + Long.toHexString(crc.getValue()) : null;
+        }
+
+        // Parties d'un fichier dans l'ordre du mapping, associées à leur serveur (ip:port)
+        static Map<String, String> findPartsInMapping(List<String> mappingLines, String requestedFile) {
+            Map<String, String> partToServerMap = new LinkedHashMap<>();
             for (String line : mappingLines) {
                 String[] tokens = line.split(",");
                 if (tokens[0].equals(requestedFile)) {
-                    partsToAssemble.add(tokens[1]);
                     partToServerMap.put(tokens[1], tokens[2]);
                 }
             }
+            return partToServerMap;
+        }
+
+        private File assembleFileFromParts(String requestedFile) throws IOException {
+            List<String> mappingLines = Files.readAllLines(Paths.get(MAPPING_FILE));
+            Map<String, String> partToServerMap = findPartsInMapping(mappingLines, requestedFile);
+            List<String> partsToAssemble = new ArrayList<>(partToServerMap.keySet());
 
             if (partsToAssemble.isEmpty()) {
                 throw new IOException("Aucune partie trouvée pour " + requestedFile);
@@ -415,17 +1641,22 @@ public class ServeurPrincipal {
                 try {
                     downloadPart(serverAddress, serverPort, part, tempDir);
                 } catch (IOException e) {
-                    // Si le téléchargement échoue, essayer de télécharger à partir du serveur répliqué
-                    List<StorageServerInfo> replicatedServers = replicationInfo.get(part);
-                    if (replicatedServers != null) {
-                        for (StorageServerInfo replicatedServer : replicatedServers) {
-                            try {
-                                downloadPart(replicatedServer.ip, replicatedServer.port, part, tempDir);
-                                break;
-                            } catch (IOException ignored) {
-                            }
+                    // Si le téléchargement échoue, essayer de télécharger à partir des serveurs répliqués ;
+                    // sans aucune copie complète, le téléchargement échoue plutôt que de rendre un fichier tronqué
+                    IOException failure = e;
+                    boolean recovered = false;
+                    for (StorageServerInfo replicatedServer : replicationInfo.getOrDefault(part, Collections.emptyList())) {
+                        try {
+                            downloadPart(replicatedServer.ip, replicatedServer.port, part, tempDir);
+                            recovered = true;
+                            break;
+                        } catch (IOException replicaFailure) {
+                            failure = replicaFailure;
                         }
                     }
+                    if (!recovered) {
+                        throw new IOException("Partie " + part + " illisible sur toutes ses copies : " + failure.getMessage(), failure);
+                    }
                 }
             }
 
@@ -449,119 +1680,927 @@ public class ServeurPrincipal {
                 tempDir.mkdirs();
             }
 
-            try (Socket socket = new Socket(serverAddress, serverPort);
+            String node = serverAddress + ":" + serverPort;
+            long start = System.nanoTime();
+            boolean missing = false;
+            try (Socket socket = TransferIO.connect(serverAddress, serverPort);
                  DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
                  DataInputStream dis = new DataInputStream(socket.getInputStream());
-                 FileOutputStream fos = new FileOutputStream(new File(tempDir, partName))) {
+                 FileChannel channel = new FileOutputStream(new File(tempDir, partName)).getChannel();
+                 BandwidthScheduler.Stream stream = foregroundStream()) {
 
                 dos.writeUTF("GET_PART");
                 dos.writeUTF(partName);
 
                 String response = dis.readUTF();
-                if ("PART_FOUND".equals(response)) {
-                    long fileSize = dis.readLong();
+                if (!"PART_FOUND".equals(response)) {
+                    // Le serveur répond : seule la partie manque (déplacée, effacée après le délai de grâce)
+                    missing = true;
+                    markNodeHealth(node, true);
+                    log("Erreur: Partie " + partName + " non trouvée sur " + serverAddress + ":" + serverPort);
+                    throw new IOException("Partie " + partName + " non trouvée sur " + node);
+                }
+                long fileSize = dis.readLong();
+                TransferIO.receive(socket, channel, 0, fileSize, null, stream);
+                if (channel.size() != fileSize) {
+                    throw new EOFException("Partie " + partName + " tronquée : " + channel.size() + "/" + fileSize + " octets");
+                }
+                Metrics.recordTransfer("from_storage", node, fileSize, start);
+                markNodeHealth(node, true);
+            } catch (IOException e) {
+                if (!missing) {
+                    markNodeHealth(node, false);
+                }
+                throw e;
+            }
+        }
 
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    long totalRead = 0;
+        private void handleDeleteFile(String fileName, DataOutputStream dos) throws IOException {
+            String result;
+            // Le mapping est relu puis réécrit : aucun ajout ni déplacement de partie entre les deux
+            synchronized (mappingLock) {
+                result = deleteFileFromMapping(fileName);
+            }
+            dos.writeUTF(result);
+        }
+
+        // Retire le fichier du catalogue et enterre ses parties (copies principales et répliques) ;
+        // le GarbageCollector les efface ensuite sans faire attendre le client
+        private String deleteFileFromMapping(String fileName) {
+            try {
+                boolean fileFound = inlineStore.remove(fileName);
+                int copies = replaceFileEntries(fileName, Collections.emptyList(), null);
+                if (copies == 0) {
+                    return fileFound ? "SUCCESS" : "Fichier introuvable dans le mapping.";
+                }
+                log("Fichier supprimé avec succès : " + fileName + " (" + copies + " copies à effacer)");
+                return "SUCCESS";
+            } catch (IOException e) {
+                log("Erreur lors de la suppression de " + fileName + " : " + e.getMessage());
+                return "Erreur lors de la suppression : " + e.getMessage();
+            }
+        }
+
+        // Remplace les lignes du fichier dans le mapping par replacement et enterre toutes les copies de ses
+        // anciennes parties. Appelé sous mappingLock. Si expectedVersion n'est pas null et que le fichier a
+        // changé depuis, ne modifie rien et renvoie -1 ; sinon renvoie le nombre de copies enterrées.
+        private static int replaceFileEntries(String fileName, List<String> replacement, String expectedVersion) throws IOException {
+            File mappingFile = new File(MAPPING_FILE);
+            List<String> lines = mappingFile.exists() ? Files.readAllLines(mappingFile.toPath()) : new ArrayList<>();
+            if (expectedVersion != null && !expectedVersion.equals(partsVersion(lines, fileName))) {
+                return -1;
+            }
 
-                    while (totalRead < fileSize && (bytesRead = dis.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
+            List<String> kept = new ArrayList<>();
+            List<String[]> copies = new ArrayList<>();
+            for (String line : lines) {
+                String[] parts = line.split(",");
+                if (parts.length >= 3 && parts[0].trim().equals(fileName.trim())) {
+                    String partFileName = parts[1].trim();
+                    copies.add(new String[]{partFileName, parts[2].trim()});
+                    for (StorageServerInfo replica : removeReplicationInfo(partFileName, null)) {
+                        copies.add(new String[]{partFileName, replica.toString()});
                     }
                 } else {
-                    log("Erreur: Partie " + partName + " non trouvée sur " + serverAddress + ":" + serverPort);
+                    kept.add(line);
                 }
             }
+            if (copies.isEmpty() && replacement.isEmpty()) {
+                return 0;
+            }
+            kept.addAll(replacement);
+
+            // Les tombes sont écrites avant le mapping : après un arrêt entre les deux, le ramasse-miettes
+            // trouve les parties encore référencées et abandonne ces tombes
+            GarbageCollector.tombstone(copies, GC_DELETE_GRACE_MS);
+            File tempFile = new File(MAPPING_FILE + ".tmp");
+            Files.write(tempFile.toPath(), kept);
+            Files.move(tempFile.toPath(), mappingFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return copies.size();
         }
+    }
 
-        private void deletePartFromSecondaryServer(String partFileName, String serverAddress) {
-            String[] addressParts = serverAddress.split(":");
-            if (addressParts.length == 2) {
-                String ip = addressParts[0];
-                int port = Integer.parseInt(addressParts[1]);
+    // Santé par serveur de stockage, observée à chaque échange avec lui
+    private static void markNodeHealth(String node, boolean success) {
+        if (success) {
+            nodeFailingSince.remove(node);
+        } else {
+            nodeFailingSince.putIfAbsent(node, System.currentTimeMillis());
+        }
+        if (success) {
+            Metrics.gauge("pftp_node_up", "node", node).set(1);
+            Metrics.gauge("pftp_node_last_success_timestamp_seconds", "node", node).set(System.currentTimeMillis() / 1000);
+        } else {
+            Metrics.gauge("pftp_node_up", "node", node).set(0);
+            Metrics.counter("pftp_node_errors_total", "node", node).inc();
+        }
+    }
 
-                try (Socket socket = new Socket(ip, port);
-                     DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                     DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+    // Rééquilibrage des serveurs de stockage : quand la charge (octets des parties inscrites au mapping)
+    // s'écarte trop de la moyenne, des parties sont recopiées du serveur le plus chargé vers le moins chargé,
+    // directement de serveur à serveur (PUSH_PART) et à débit limité. Le mapping ne bascule vers la nouvelle
+    // copie qu'une fois sa taille et son CRC32C vérifiés ; l'ancienne copie n'est supprimée qu'après un délai
+    // de grâce, pour les lectures qui ont lu le mapping avant la bascule.
+    static class Rebalancer {
+        private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "rebalancer");
+            t.setDaemon(true);
+            return t;
+        });
+        private static final BandwidthScheduler.TokenBucket pace = new BandwidthScheduler.TokenBucket(REBALANCE_RATE);
+
+        static void start() {
+            scheduler.scheduleWithFixedDelay(Rebalancer::runPass, REBALANCE_INTERVAL, REBALANCE_INTERVAL, TimeUnit.SECONDS);
+        }
 
-                    dos.writeUTF("DELETE_PART");
-                    dos.writeUTF(partFileName);
+        // Passe anticipée, après un intervalle de diffusion pour laisser les autres serveurs se manifester
+        static void requestPass() {
+            scheduler.schedule(Rebalancer::runPass, BROADCAST_INTERVAL, TimeUnit.SECONDS);
+        }
 
-                    String response = dis.readUTF();
-                    if ("SUCCESS".equals(response)) {
-                        log("Partie supprimée avec succès : " + partFileName + " sur " + serverAddress);
-                    } else {
-                        log("Échec de la suppression de la partie : " + partFileName + " sur " + serverAddress);
+        private static void runPass() {
+            try {
+                int moves = rebalanceOnce();
+                if (moves > 0) {
+                    log("Rééquilibrage : " + moves + " parties déplacées");
+                }
+            } catch (IOException | RuntimeException e) {
+                log("Erreur lors du rééquilibrage : " + e.getMessage());
+            }
+        }
+
+        static int rebalanceOnce() throws IOException {
+            List<StorageServerInfo> servers = clusterView.get().servers;
+            if (servers.size() < 2 || !new File(MAPPING_FILE).exists()) {
+                return 0;
+            }
+
+            Map<String, Long> load = new HashMap<>();
+            Map<String, List<String>> linesByServer = new HashMap<>();
+            for (StorageServerInfo server : servers) {
+                load.put(server.toString(), 0L);
+                linesByServer.put(server.toString(), new ArrayList<>());
+            }
+            long total = 0;
+            for (String line : Files.readAllLines(Paths.get(MAPPING_FILE))) {
+                String[] tokens = line.split(",");
+                // Les entrées sans taille ni CRC (anciennes versions) ne peuvent pas être vérifiées : elles restent en place
+                if (tokens.length >= 5 && load.containsKey(tokens[2])) {
+                    long size = Long.parseLong(tokens[3]);
+                    load.merge(tokens[2], size, Long::sum);
+                    linesByServer.get(tokens[2]).add(line);
+                    total += size;
+                }
+            }
+            long tolerance = Math.max(1, (long) (REBALANCE_TOLERANCE * total / servers.size()));
+
+            int moves = 0;
+            while (moves < REBALANCE_MAX_MOVES) {
+                String source = Collections.max(load.entrySet(), Map.Entry.comparingByValue()).getKey();
+                String target = Collections.min(load.entrySet(), Map.Entry.comparingByValue()).getKey();
+                long gap = load.get(source) - load.get(target);
+                if (gap <= tolerance) {
+                    break;
+                }
+                // La plus grosse partie qui réduit l'écart, sans réplique déjà présente sur la cible
+                String candidate = null;
+                long candidateSize = 0;
+                for (String line : linesByServer.get(source)) {
+                    String[] tokens = line.split(",");
+                    long size = Long.parseLong(tokens[3]);
+                    List<StorageServerInfo> replicas = replicationInfo.get(tokens[1]);
+                    boolean replicaOnTarget = replicas != null && replicas.contains(parseServer(target));
+                    if (size <= gap / 2 && size > candidateSize && !replicaOnTarget) {
+                        candidate = line;
+                        candidateSize = size;
                     }
+                }
+                if (candidate == null) {
+                    break;
+                }
+                linesByServer.get(source).remove(candidate);
+                if (!movePart(candidate, target)) {
+                    Metrics.counter("pftp_rebalance_failures_total").inc();
+                    break; // Nouvel essai à la passe suivante
+                }
+                load.merge(source, -candidateSize, Long::sum);
+                load.merge(target, candidateSize, Long::sum);
+                moves++;
+                Metrics.counter("pftp_rebalance_moves_total").inc();
+                Metrics.counter("pftp_rebalance_bytes_total").add(candidateSize);
+                try {
+                    TimeUnit.NANOSECONDS.sleep(pace.take(candidateSize));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            for (Map.Entry<String, Long> entry : load.entrySet()) {
+                Metrics.gauge("pftp_rebalance_node_bytes", "node", entry.getKey()).set(entry.getValue());
+            }
+            return moves;
+        }
+
+        // Copie, vérification, bascule du mapping puis suppression différée de l'ancienne copie
+        private static boolean movePart(String line, String target) {
+            String partName = line.split(",")[1];
+            // La cible a pu détenir une ancienne copie de cette partie, encore enterrée
+            GarbageCollector.claim(partName, target);
+            try {
+                return copyAndSwitch(line, target);
+            } finally {
+                GarbageCollector.release(partName, target);
+            }
+        }
+
+        private static boolean copyAndSwitch(String line, String target) {
+            String[] tokens = line.split(",");
+            String partName = tokens[1];
+            String source = tokens[2];
+            StorageServerInfo targetInfo = parseServer(target);
+            long size = Long.parseLong(tokens[3]);
+            long checksum = Long.parseLong(tokens[4]);
+            String response = pushPart(source, partName, target, BandwidthScheduler.TrafficClass.REBALANCE);
+            if (!"SUCCESS".equals(response)) {
+                log("Rééquilibrage : copie de " + partName + " vers " + target + " impossible : " + response);
+                return false;
+            }
+
+            long[] info = ClientHandler.queryPartInfo(targetInfo, partName);
+            boolean switched = false;
+            if (info != null && info[0] == size && info[1] == checksum) {
+                String moved = tokens[0] + "," + partName + "," + target + "," + tokens[3] + "," + tokens[4];
+                switched = replaceMappingLine(line, moved);
+            }
+            if (!switched) {
+                // Copie invalide, ou partie supprimée ou réécrite pendant le déplacement
+                GarbageCollector.tombstone(partName, target, 0);
+                log("Rééquilibrage : " + partName + " laissée sur " + source);
+                return false;
+            }
+            log("Partie " + partName + " déplacée de " + source + " vers " + target);
+            GarbageCollector.tombstone(partName, source, REBALANCE_GRACE_MS);
+            return true;
+        }
+
+        // Remplace une ligne du mapping si elle est toujours présente à l'identique
+        private static boolean replaceMappingLine(String line, String replacement) {
+            synchronized (mappingLock) {
+                try {
+                    List<String> lines = new ArrayList<>(Files.readAllLines(Paths.get(MAPPING_FILE)));
+                    int index = lines.indexOf(line);
+                    if (index < 0) {
+                        return false;
+                    }
+                    lines.set(index, replacement);
+                    File tempFile = new File(MAPPING_FILE + ".tmp");
+                    Files.write(tempFile.toPath(), lines);
+                    Files.move(tempFile.toPath(), Paths.get(MAPPING_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    return true;
                 } catch (IOException e) {
-                    log("Erreur lors de la connexion au serveur secondaire (" + serverAddress + ") : " + e.getMessage());
+                    log("Erreur lors de la mise à jour du mapping : " + e.getMessage());
+                    return false;
                 }
             }
         }
+    }
 
-        private void handleDeleteFile(String fileName, DataOutputStream dos) {
-            File mappingFile = new File("file_mapping.conf");
-            File tempFile = new File("file_mapping_temp.txt");
+    private static StorageServerInfo parseServer(String server) {
+        int separator = server.lastIndexOf(':');
+        return new StorageServerInfo(server.substring(0, separator), Integer.parseInt(server.substring(separator + 1)));
+    }
 
-            boolean fileFound = false;
+    // Demande au serveur source de copier une partie vers target ; renvoie SUCCESS ou la cause de l'échec
+    private static String pushPart(String source, String partName, String target, BandwidthScheduler.TrafficClass trafficClass) {
+        StorageServerInfo sourceInfo = parseServer(source);
+        try (Socket socket = TransferIO.connect(sourceInfo.ip, sourceInfo.port);
+             DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+             DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+            dos.writeUTF("PUSH_PART");
+            dos.writeUTF(partName);
+            dos.writeUTF(target);
+            dos.writeUTF(trafficClass.label());
+            String response = dis.readUTF();
+            markNodeHealth(source, true);
+            return response;
+        } catch (IOException e) {
+            markNodeHealth(source, false);
+            return source + " injoignable : " + e.getMessage();
+        }
+    }
 
-            try (
-                BufferedReader reader = new BufferedReader(new FileReader(mappingFile));
-                BufferedWriter writer = new BufferedWriter(new FileWriter(tempFile))
-            ) {
-                String line;
+    // Un serveur est perdu s'il a quitté la configuration ou s'il échoue sans interruption depuis NODE_DEAD_AFTER_MS
+    private static boolean isNodeAlive(String node) {
+        Long failingSince = nodeFailingSince.get(node);
+        return clusterView.get().servers.contains(parseServer(node))
+                && (failingSince == null || System.currentTimeMillis() - failingSince < NODE_DEAD_AFTER_MS);
+    }
 
-                while ((line = reader.readLine()) != null) {
-                    String[] parts = line.split(",");
-                    if (parts.length >= 3 && parts[0].trim().equals(fileName.trim())) {
-                        fileFound = true;
-                        String partFileName = parts[1].trim();
-                        String serverAddress = parts[2].trim();
-                        deletePartFromSecondaryServer(partFileName, serverAddress);
-                    } else {
-                        writer.write(line);
-                        writer.newLine();
+    // Réparation des parties sous-répliquées : chaque passe sonde les serveurs de stockage (PING), compte
+    // pour chaque partie du mapping les copies (principale et répliques) sur des serveurs vivants, puis
+    // recopie les parties sous REPLICATION_FACTOR depuis une copie survivante vers le serveur vivant le moins
+    // chargé qui ne l'a pas. Les parties avec le moins de copies vivantes passent en premier ; la copie n'est
+    // enregistrée comme réplique (et persistée dans replicas.conf) qu'après vérification de sa taille et de son CRC32C.
+    static class Repairer {
+        private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "repairer");
+            t.setDaemon(true);
+            return t;
+        });
+        private static final ExecutorService copyPool = Executors.newFixedThreadPool(REPAIR_PARALLELISM, r -> {
+            Thread t = new Thread(r, "repair-copy");
+            t.setDaemon(true);
+            return t;
+        });
+
+        static void start() {
+            scheduler.scheduleWithFixedDelay(Repairer::runPass, REPAIR_INTERVAL, REPAIR_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        private static void runPass() {
+            try {
+                int repaired = repairOnce();
+                if (repaired > 0) {
+                    log("Réparation : " + repaired + " copies recréées");
+                }
+            } catch (IOException | RuntimeException e) {
+                log("Erreur lors de la réparation : " + e.getMessage());
+            }
+        }
+
+        static int repairOnce() throws IOException {
+            List<StorageServerInfo> servers = clusterView.get().servers;
+            probe(servers);
+            if (!new File(MAPPING_FILE).exists()) {
+                return 0;
+            }
+
+            List<String> alive = new ArrayList<>();
+            for (StorageServerInfo server : servers) {
+                if (isNodeAlive(server.toString())) {
+                    alive.add(server.toString());
+                }
+            }
+            Map<String, Integer> load = new HashMap<>(); // Copies par serveur vivant, pour choisir les destinations
+            for (String server : alive) {
+                load.put(server, 0);
+            }
+
+            List<RepairTask> tasks = new ArrayList<>();
+            int lost = 0;
+            for (String line : Files.readAllLines(Paths.get(MAPPING_FILE))) {
+                String[] tokens = line.split(",");
+                if (tokens.length < 5) {
+                    continue; // Sans taille ni CRC, une copie ne pourrait pas être vérifiée
+                }
+                Set<String> locations = new LinkedHashSet<>();
+                locations.add(tokens[2]);
+                for (StorageServerInfo replica : replicationInfo.getOrDefault(tokens[1], Collections.emptyList())) {
+                    locations.add(replica.toString());
+                }
+                List<String> live = new ArrayList<>();
+                for (String location : locations) {
+                    if (load.containsKey(location)) {
+                        live.add(location);
+                        load.merge(location, 1, Integer::sum);
                     }
                 }
-            } catch (IOException e) {
+                if (live.isEmpty()) {
+                    lost++;
+                } else if (live.size() < REPLICATION_FACTOR) {
+                    tasks.add(new RepairTask(tokens[1], Long.parseLong(tokens[3]), Long.parseLong(tokens[4]), live, locations));
+                }
+            }
+            Metrics.gauge("pftp_repair_under_replicated_parts").set(tasks.size());
+            Metrics.gauge("pftp_repair_lost_parts").set(lost);
+            if (lost > 0) {
+                log("Réparation : " + lost + " parties sans aucune copie vivante");
+            }
+
+            // Les parties les plus exposées d'abord, puis les plus petites (plus de parties protégées par seconde)
+            tasks.sort(Comparator.comparingInt((RepairTask t) -> t.live.size()).thenComparingLong(t -> t.size));
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (RepairTask task : tasks) {
+                String target = null;
+                for (String server : alive) {
+                    if (!task.locations.contains(server) && (target == null || load.get(server) < load.get(target))) {
+                        target = server;
+                    }
+                }
+                if (target == null) {
+                    continue; // Pas assez de serveurs vivants pour ajouter une copie
+                }
+                load.merge(target, 1, Integer::sum);
+                final String destination = target;
+                results.add(copyPool.submit(() -> repair(task, destination)));
+            }
+
+            int repaired = 0;
+            for (Future<Boolean> result : results) {
                 try {
-                    dos.writeUTF("Erreur lors de la suppression : " + e.getMessage());
-                } catch (IOException ioException) {
-                    log("Erreur lors de l'envoi du message d'erreur au client : " + ioException.getMessage());
+                    if (result.get()) {
+                        repaired++;
+                    }
+                } catch (ExecutionException e) {
+                    Metrics.counter("pftp_repair_failures_total").inc();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return repaired;
+        }
+
+        // Sonde en parallèle les serveurs de stockage ; le résultat alimente markNodeHealth. Les sondes ont leurs
+        // propres threads (voir unresponsive), bornés par les délais de ping, et n'attendent pas derrière les
+        // copies de copyPool
+        private static void probe(List<StorageServerInfo> servers) {
+            unresponsive(servers);
+        }
+
+        private static boolean repair(RepairTask task, String target) {
+            GarbageCollector.claim(task.partName, target);
+            try {
+                return copyFromLive(task, target);
+            } finally {
+                GarbageCollector.release(task.partName, target);
+            }
+        }
+
+        private static boolean copyFromLive(RepairTask task, String target) {
+            for (String source : task.live) {
+                String response = pushPart(source, task.partName, target, BandwidthScheduler.TrafficClass.REPLICATION);
+                if (!"SUCCESS".equals(response)) {
+                    log("Réparation : copie de " + task.partName + " depuis " + source + " impossible : " + response);
+                    continue;
+                }
+                StorageServerInfo targetInfo = parseServer(target);
+                long[] info = ClientHandler.queryPartInfo(targetInfo, task.partName);
+                if (info == null || info[0] != task.size || info[1] != task.checksum) {
+                    log("Réparation : copie de " + task.partName + " sur " + target + " invalide");
+                    continue;
                 }
-                log("Erreur lors du traitement du mapping : " + e.getMessage());
+                storeReplicationInfo(task.partName, targetInfo.ip, targetInfo.port);
+                Metrics.counter("pftp_repair_copies_total").inc();
+                Metrics.counter("pftp_repair_bytes_total").add(task.size);
+                log("Réparation : " + task.partName + " recopiée de " + source + " vers " + target);
+                return true;
+            }
+            Metrics.counter("pftp_repair_failures_total").inc();
+            return false;
+        }
+    }
+
+    static class RepairTask {
+        final String partName;
+        final long size;
+        final long checksum;
+        final List<String> live; // Copies sur des serveurs vivants
+        final Set<String> locations; // Toutes les copies connues, vivantes ou non
+
+        RepairTask(String partName, long size, long checksum, List<String> live, Set<String> locations) {
+            this.partName = partName;
+            this.size = size;
+            this.checksum = checksum;
+            this.live = live;
+            this.locations = locations;
+        }
+    }
+
+    // Ramasse-miettes des copies de parties devenues inutiles (fichier supprimé, ancienne copie d'une partie
+    // déplacée). Chaque copie à effacer devient une tombe partie,ip:port,échéance, ajoutée à tombstones.conf.
+    // Toutes les GC_INTERVAL secondes, les tombes échues sont regroupées par serveur et envoyées par lots
+    // (DELETE_PARTS) ; un serveur injoignable est retenté plus tard, avec un délai doublé à chaque échec.
+    // Une tombe dont la copie est de nouveau référencée (mapping ou répliques) est abandonnée sans rien effacer ;
+    // les références sont relues juste avant chaque lot, et une copie réservée par un déplacement ou une
+    // réparation en cours (claim) est épargnée.
+    // Toutes les GC_SCRUB_INTERVAL secondes, les parties de ce shard listées par chaque serveur (LIST_PARTS) qu'aucune
+    // entrée du catalogue ne référence depuis GC_ORPHAN_AGE_MS sont enterrées à leur tour, et les fichiers
+    // abandonnés de temp_parts/ et assembled_files/ sont effacés.
+    static class GarbageCollector {
+        private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "garbage-collector");
+            t.setDaemon(true);
+            return t;
+        });
+        private static final List<Tombstone> tombstones = new ArrayList<>(); // Protégée par son propre verrou
+        // État propre au thread du ramasse-miettes
+        private static final Map<String, Integer> failures = new HashMap<>(); // Échecs consécutifs par serveur
+        private static final Map<String, Long> retryAt = new HashMap<>(); // Prochain essai par serveur injoignable
+        private static final Map<String, Long> orphanSince = new HashMap<>(); // partie@serveur sans référence, premier constat
+        // Tenu de la vérification des références jusqu'à la réponse à DELETE_PARTS : une copie réservée (claim)
+        // avant d'être écrite ne peut pas être effacée par un lot déjà parti
+        private static final Object deletionLock = new Object();
+        private static final Set<String> claimed = ConcurrentHashMap.newKeySet(); // partie@serveur en cours d'écriture
+
+        static void load() {
+            File file = new File(TOMBSTONE_FILE);
+            if (!file.exists()) {
                 return;
             }
+            synchronized (tombstones) {
+                try {
+                    for (String line : Files.readAllLines(file.toPath())) {
+                        String[] tokens = line.split(",");
+                        if (tokens.length == 3) {
+                            tombstones.add(new Tombstone(tokens[0], tokens[1], Long.parseLong(tokens[2])));
+                        }
+                    }
+                    log("Tombes rechargées : " + tombstones.size());
+                } catch (IOException | RuntimeException e) {
+                    log("Erreur lors du chargement des tombes : " + e.getMessage());
+                }
+                Metrics.gauge("pftp_gc_pending_tombstones").set(tombstones.size());
+            }
+        }
+
+        static void start() {
+            scheduler.scheduleWithFixedDelay(GarbageCollector::runPass, GC_INTERVAL, GC_INTERVAL, TimeUnit.SECONDS);
+            scheduler.scheduleWithFixedDelay(GarbageCollector::runScrub, GC_SCRUB_INTERVAL, GC_SCRUB_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        // En cas d'échec la copie reste orpheline jusqu'à la prochaine recherche d'orphelins
+        static void tombstone(String partName, String server, long delayMillis) {
+            try {
+                tombstone(Collections.singletonList(new String[]{partName, server}), delayMillis);
+            } catch (IOException e) {
+                log("Erreur lors de l'enregistrement de la tombe de " + partName + " sur " + server + " : " + e.getMessage());
+            }
+        }
 
-            if (fileFound) {
-                if (mappingFile.delete() && tempFile.renameTo(mappingFile)) {
-                    try {
-                        dos.writeUTF("SUCCESS");
-                        log("Fichier supprimé avec succès : " + fileName);
-                    } catch (IOException e) {
-                        log("Erreur lors de l'envoi de SUCCESS : " + e.getMessage());
+        // copies : paires {partie, ip:port} à effacer dans delayMillis
+        static void tombstone(List<String[]> copies, long delayMillis) throws IOException {
+            long notBefore = System.currentTimeMillis() + delayMillis;
+            synchronized (tombstones) {
+                try (FileWriter fw = new FileWriter(TOMBSTONE_FILE, true);
+                     BufferedWriter bw = new BufferedWriter(fw)) {
+                    for (String[] copy : copies) {
+                        Tombstone tombstone = new Tombstone(copy[0], copy[1], notBefore);
+                        bw.write(tombstone.toString());
+                        bw.newLine();
+                        tombstones.add(tombstone);
                     }
-                } else {
+                }
+                Metrics.gauge("pftp_gc_pending_tombstones").set(tombstones.size());
+            }
+        }
+
+        // À appeler avant d'écrire une copie sous un nom qui a pu être enterré (déplacement, réparation) ; la copie
+        // est protégée jusqu'à release, qui suit son inscription au catalogue ou l'abandon de l'écriture
+        static void claim(String partName, String server) {
+            synchronized (deletionLock) {
+                claimed.add(partName + "@" + server);
+            }
+        }
+
+        static void release(String partName, String server) {
+            claimed.remove(partName + "@" + server);
+        }
+
+        private static void runPass() {
+            try {
+                int deleted = collect();
+                if (deleted > 0) {
+                    log("Ramasse-miettes : " + deleted + " parties effacées");
+                }
+            } catch (IOException | RuntimeException e) {
+                log("Erreur du ramasse-miettes : " + e.getMessage());
+            }
+        }
+
+        static int collect() throws IOException {
+            long now = System.currentTimeMillis();
+            Map<String, List<Tombstone>> due = new LinkedHashMap<>();
+            synchronized (tombstones) {
+                for (Tombstone tombstone : tombstones) {
+                    if (tombstone.notBefore <= now && retryAt.getOrDefault(tombstone.server, 0L) <= now) {
+                        due.computeIfAbsent(tombstone.server, k -> new ArrayList<>()).add(tombstone);
+                    }
+                }
+            }
+            if (due.isEmpty()) {
+                return 0;
+            }
+
+            Set<Tombstone> done = new HashSet<>();
+            int deleted = 0;
+            for (Map.Entry<String, List<Tombstone>> entry : due.entrySet()) {
+                String server = entry.getKey();
+                List<Tombstone> batch = entry.getValue();
+                for (int from = 0; from < batch.size(); from += GC_BATCH) {
+                    List<Tombstone> candidates = batch.subList(from, Math.min(batch.size(), from + GC_BATCH));
                     try {
-                        dos.writeUTF("Erreur lors de la mise à jour du fichier de mapping.");
+                        synchronized (deletionLock) {
+                            // Références relues sous mappingLock juste avant l'effacement : une copie inscrite
+                            // depuis le début de la passe n'est pas effacée
+                            Set<String> referenced = referencedCopies(false);
+                            List<Tombstone> chunk = new ArrayList<>();
+                            for (Tombstone tombstone : candidates) {
+                                String key = tombstone.partName + "@" + server;
+                                if (referenced.contains(key)) {
+                                    done.add(tombstone); // La copie sert de nouveau : il n'y a plus rien à effacer
+                                } else if (!claimed.contains(key)) { // Copie en cours d'écriture : tombe gardée pour plus tard
+                                    chunk.add(tombstone);
+                                }
+                            }
+                            if (!chunk.isEmpty()) {
+                                deleted += deleteParts(server, chunk);
+                                done.addAll(chunk);
+                            }
+                        }
+                        failures.remove(server);
+                        retryAt.remove(server);
                     } catch (IOException e) {
-                        log("Erreur lors de l'envoi du message au client : " + e.getMessage());
+                        int attempts = failures.merge(server, 1, Integer::sum);
+                        long backoff = Math.min(GC_MAX_BACKOFF_MS, (GC_INTERVAL * 1000) << Math.min(attempts - 1, 16));
+                        retryAt.put(server, now + backoff);
+                        Metrics.counter("pftp_gc_retries_total").inc();
+                        log("Ramasse-miettes : " + server + " injoignable (" + e.getMessage() + "), nouvel essai dans "
+                                + backoff / 1000 + " s");
+                        break;
                     }
                 }
-            } else {
+            }
+
+            if (!done.isEmpty()) {
+                synchronized (tombstones) {
+                    tombstones.removeIf(done::contains);
+                    List<String> lines = new ArrayList<>();
+                    for (Tombstone tombstone : tombstones) {
+                        lines.add(tombstone.toString());
+                    }
+                    File tempFile = new File(TOMBSTONE_FILE + ".tmp");
+                    Files.write(tempFile.toPath(), lines);
+                    Files.move(tempFile.toPath(), Paths.get(TOMBSTONE_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    Metrics.gauge("pftp_gc_pending_tombstones").set(tombstones.size());
+                }
+            }
+            return deleted;
+        }
+
+        private static int deleteParts(String server, List<Tombstone> batch) throws IOException {
+            StorageServerInfo serverInfo = parseServer(server);
+            try (Socket socket = TransferIO.connect(serverInfo.ip, serverInfo.port, 2000);
+                 DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                 DataInputStream dis = new DataInputStream(socket.getInputStream())) {
+                dos.writeUTF("DELETE_PARTS");
+                dos.writeInt(batch.size());
+                for (Tombstone tombstone : batch) {
+                    dos.writeUTF(tombstone.partName);
+                }
+                dos.flush();
+                int deleted = dis.readInt();
+                markNodeHealth(server, true);
+                Metrics.counter("pftp_gc_batches_total").inc();
+                Metrics.counter("pftp_gc_deleted_parts_total").add(deleted);
+                return deleted;
+            } catch (IOException e) {
+                markNodeHealth(server, false);
+                throw e;
+            }
+        }
+
+        // Copies référencées par le catalogue, sous la forme partie@ip:port ; avec mappedOnly, une réplique
+        // ne compte que si sa partie figure encore dans le mapping
+        private static Set<String> referencedCopies(boolean mappedOnly) throws IOException {
+            Set<String> referenced = new HashSet<>();
+            Set<String> mappedParts = new HashSet<>();
+            synchronized (mappingLock) {
+                if (new File(MAPPING_FILE).exists()) {
+                    for (String line : Files.readAllLines(Paths.get(MAPPING_FILE))) {
+                        String[] tokens = line.split(",");
+                        if (tokens.length >= 3) {
+                            referenced.add(tokens[1] + "@" + tokens[2]);
+                            mappedParts.add(tokens[1]);
+                        }
+                    }
+                }
+            }
+            for (Map.Entry<String, List<StorageServerInfo>> entry : replicationInfo.entrySet()) {
+                if (mappedOnly && !mappedParts.contains(entry.getKey())) {
+                    continue;
+                }
+                for (StorageServerInfo replica : entry.getValue()) {
+                    referenced.add(entry.getKey() + "@" + replica);
+                }
+            }
+            return referenced;
+        }
+
+        private static void runScrub() {
+            try {
+                scrub();
+            } catch (IOException | RuntimeException e) {
+                log("Erreur lors de la recherche d'orphelins : " + e.getMessage());
+            }
+        }
+
+        // Une partie n'est enterrée qu'après avoir été vue sans référence pendant GC_ORPHAN_AGE_MS : les copies
+        // d'un upload, d'un déplacement ou d'une réparation en cours ne sont pas encore dans le catalogue
+        static void scrub() throws IOException {
+            long now = System.currentTimeMillis();
+            List<StorageServerInfo> servers = clusterView.get().servers;
+            Set<String> referenced = referencedCopies(true);
+            Set<String> buried = new HashSet<>();
+            synchronized (tombstones) {
+                for (Tombstone tombstone : tombstones) {
+                    buried.add(tombstone.partName + "@" + tombstone.server);
+                }
+            }
+
+            Set<String> unreferenced = new HashSet<>();
+            List<String[]> orphans = new ArrayList<>();
+            for (StorageServerInfo server : servers) {
+                List<String> names;
+                try {
+                    names = listParts(server);
+                } catch (IOException e) {
+                    log("Recherche d'orphelins : " + server + " injoignable : " + e.getMessage());
+                    continue;
+                }
+                for (String name : names) {
+                    String key = name + "@" + server;
+                    if (!shards.ownsPart(name) || referenced.contains(key) || buried.contains(key)) {
+                        continue;
+                    }
+                    unreferenced.add(key);
+                    if (now - orphanSince.computeIfAbsent(key, k -> now) >= GC_ORPHAN_AGE_MS) {
+                        orphans.add(new String[]{name, server.toString()});
+                    }
+                }
+            }
+            orphanSince.keySet().retainAll(unreferenced);
+
+            for (String[] orphan : orphans) {
+                removeReplicationInfo(orphan[0], parseServer(orphan[1])); // Réplique d'une partie sortie du mapping
+                orphanSince.remove(orphan[0] + "@" + orphan[1]);
+            }
+            if (!orphans.isEmpty()) {
+                tombstone(orphans, 0);
+                Metrics.counter("pftp_gc_orphans_total", "location", "storage").add(orphans.size());
+                log("Recherche d'orphelins : " + orphans.size() + " parties sans référence enterrées");
+            }
+            scrubDirectory(new File("temp_parts"), now);
+            scrubDirectory(new File("assembled_files"), now);
+        }
+
+        private static List<String> listParts(StorageServerInfo server) throws IOException {
+            try (Socket socket = TransferIO.connect(server.ip, server.port, 2000);
+                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()))) {
+                dos.writeUTF("LIST_PARTS");
+                int count = dis.readInt();
+                List<String> names = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    names.add(dis.readUTF());
+                }
+                markNodeHealth(server.toString(), true);
+                return names;
+            } catch (IOException e) {
+                markNodeHealth(server.toString(), false);
+                throw e;
+            }
+        }
+
+        // Fichiers de travail des téléchargements restés sur place (client parti, erreur en cours d'assemblage)
+        private static void scrubDirectory(File dir, long now) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                return;
+            }
+            Set<File> inUse = new HashSet<>();
+            for (TransferSession session : transferSessions.values()) {
+                if (session.file != null) {
+                    inUse.add(session.file.getAbsoluteFile());
+                }
+            }
+            int removed = 0;
+            for (File file : files) {
+                if (file.isFile() && now - file.lastModified() >= GC_ORPHAN_AGE_MS
+                        && !inUse.contains(file.getAbsoluteFile()) && file.delete()) {
+                    removed++;
+                }
+            }
+            if (removed > 0) {
+                Metrics.counter("pftp_gc_orphans_total", "location", dir.getName()).add(removed);
+                log("Recherche d'orphelins : " + removed + " fichiers effacés dans " + dir.getName());
+            }
+        }
+    }
+
+    static class Tombstone {
+        final String partName;
+        final String server;
+        final long notBefore; // Heure (ms) avant laquelle la copie ne doit pas être effacée
+
+        Tombstone(String partName, String server, long notBefore) {
+            this.partName = partName;
+            this.server = server;
+            this.notBefore = notBefore;
+        }
+
+        @Override
+        public String toString() {
+            return partName + "," + server + "," + notBefore;
+        }
+    }
+
+    // Morceau de la nouvelle version d'un fichier synchronisé : plage de l'ancienne partie d'indice part,
+    // ou octets littéraux mis de côté à offset (part = -1)
+    static class SyncPiece {
+        final int part;
+        final long offset;
+        long length;
+
+        SyncPiece(int part, long offset, long length) {
+            this.part = part;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    static class PlacementPlan {
+        final String fileName;
+        final List<PlannedPart> parts = new ArrayList<>();
+        final long createdAt = System.currentTimeMillis();
+
+        PlacementPlan(String fileName) {
+            this.fileName = fileName;
+        }
+    }
+
+    static class PlannedPart {
+        final String name;
+        final long offset;
+        final long length;
+        final StorageServerInfo server;
+
+        PlannedPart(String name, long offset, long length, StorageServerInfo server) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+            this.server = server;
+        }
+    }
+
+    // Fichier temporaire partagé par les connexions d'un même transfert multi-flux
+    static class TransferSession {
+        final String fileName;
+        final File file;
+        final long size;
+        final byte[] inlineData; // Contenu d'un petit fichier servi depuis la mémoire (file est alors null)
+        volatile long lastAccess = System.currentTimeMillis();
+        private FileChannel channel;
+
+        TransferSession(String fileName, File file, long size) {
+            this.fileName = fileName;
+            this.file = file;
+            this.size = size;
+            this.inlineData = null;
+        }
+
+        TransferSession(String fileName, byte[] inlineData) {
+            this.fileName = fileName;
+            this.file = null;
+            this.size = inlineData.length;
+            this.inlineData = inlineData;
+        }
+
+        // Les lectures et écritures positionnelles d'un FileChannel sont sûres entre threads
+        synchronized FileChannel channel() throws IOException {
+            if (channel == null) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+
+        synchronized void close() {
+            if (channel != null) {
                 try {
-                    dos.writeUTF("Fichier introuvable dans le mapping.");
+                    channel.close();
                 } catch (IOException e) {
-                    log("Erreur lors de l'envoi du message d'erreur au client : " + e.getMessage());
+                    log("Erreur lors de la fermeture de " + file + " : " + e.getMessage());
                 }
+                channel = null;
             }
         }
     }
 
+    // Instantané de la configuration des serveurs de stockage ; version croît à chaque changement
+    static final class ClusterView {
+        final long version;
+        final List<StorageServerInfo> servers; // Non modifiable
+
+        ClusterView(long version, List<StorageServerInfo> servers) {
+            this.version = version;
+            this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+        }
+    }
+
+    // Immuable : partagé par les instantanés ClusterView
     static class StorageServerInfo {
-        String ip;
-        int port;
+        final String ip;
+        final int port;
 
         public StorageServerInfo(String ip, int port) {
             this.ip = ip;
@@ -576,7 +2615,7 @@ public class ServeurPrincipal {
         @Override
         public boolean equals(Object obj) {
             if (this == obj) return true;
-            if (obj == null || getClass() != getClass()) return false;
+            if (obj == null || getClass() != obj.getClass()) return false;
             StorageServerInfo that = (StorageServerInfo) obj;
             return port == that.port && Objects.equals(ip, that.ip);
         }
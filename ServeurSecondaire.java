@@ -1,27 +1,72 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 
 public class ServeurSecondaire {
     private static int port = 5004;  // Le port sur lequel le serveur secondaire écoute pour recevoir des fichiers
     private static final String LOG_FILE = "ServeurSecondaire.log";
-    private static final int BROADCAST_PORT = 6002; // Le port sur lequel le serveur secondaire écoute pour les messages de diffusion
+    private static int broadcastPort = 6002; // Le port sur lequel le serveur secondaire écoute pour les messages de diffusion
     private static int responsePort = 6005; // Le port sur lequel le serveur secondaire envoie les informations de connexion
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    private static final String otherServerIp = "127.0.0.1"; // Adresse IP de l'autre serveur secondaire
-    private static final int otherServerPort = 5003;
+    private static String otherServerIp = "127.0.0.1"; // Adresse IP de l'autre serveur secondaire
+    private static int otherServerPort = 5003;
+    private static String principalIp = "127.0.0.1"; // Adresse IP du serveur principal
+    private static int principalPort = 6000;
     private static final Set<String> replicatedFiles = Collections.synchronizedSet(new HashSet<>()); // Ensemble pour suivre les fichiers répliqués
+    private static final long SEGMENT_SIZE = Long.getLong("segment.size", 256L * 1024 * 1024); // Taille maximale d'un segment de stockage
+    private static final long COMPACTION_INTERVAL = Long.getLong("compaction.interval", 60); // Secondes entre deux passes du compacteur
+    private static final String DURABILITY = System.getProperty("durability", "group"); // none, sync ou group (voir SegmentStore.Durability)
+    private static final long DURABILITY_WINDOW = Long.getLong("durability.window", 2); // Millisecondes d'attente d'un lot en mode group
+    private static final double COMPACTION_THRESHOLD = 0.5; // Proportion de données vivantes sous laquelle un segment est compacté
+    private static final String STORAGE_DIRS = System.getProperty("storage.dirs", "storage"); // Répertoires de données, un par disque, séparés par des virgules
+    private static final int DISK_THREADS = Integer.getInteger("storage.disk.threads", 8); // Threads d'E/S par disque
+    private static StripedStore store;
+    private static int metricsPort = -1; // Port HTTP local des métriques Prometheus (par défaut port + 4100)
 
     public static void main(String[] args) {
         if (args.length >= 3) {
             port = Integer.parseInt(args[0]);
+            broadcastPort = Integer.parseInt(args[1]);
             responsePort = Integer.parseInt(args[2]);
         }
+        // Adresses ip:port surchargeables, par exemple pour lancer plusieurs serveurs sur la même machine
+        String replica = System.getProperty("replica.address");
+        if (replica != null) {
+            otherServerIp = replica.substring(0, replica.lastIndexOf(':'));
+            otherServerPort = Integer.parseInt(replica.substring(replica.lastIndexOf(':') + 1));
+        }
+        String principal = System.getProperty("principal.address");
+        if (principal != null) {
+            principalIp = principal.substring(0, principal.lastIndexOf(':'));
+            principalPort = Integer.parseInt(principal.substring(principal.lastIndexOf(':') + 1));
+        }
+        metricsPort = Integer.getInteger("metrics.port", port + 4100);
+
+        try {
+            List<File> dirs = new ArrayList<>();
+            for (String dir : STORAGE_DIRS.split(",")) {
+                if (!dir.trim().isEmpty()) {
+                    dirs.add(new File(dir.trim()));
+                }
+            }
+            store = new StripedStore(dirs, SEGMENT_SIZE, SegmentStore.Durability.fromLabel(DURABILITY), DURABILITY_WINDOW, DISK_THREADS);
+            store.startCompactor(COMPACTION_INTERVAL, COMPACTION_THRESHOLD);
+            log("Stockage ouvert sur " + dirs.size() + " disque(s) : " + store.dirs());
+        } catch (IOException | IllegalArgumentException e) {
+            log("Impossible d'ouvrir le stockage : " + e.getMessage());
+            System.out.println("Impossible d'ouvrir le stockage : " + e.getMessage());
+            return;
+        }
 
+        startMetricsServer();
         startServer();
         listenForBroadcast();
     }
@@ -37,13 +82,22 @@ public class ServeurSecondaire {
         }
     }
 
+    private static void startMetricsServer() {
+        try {
+            Metrics.startHttpServer(metricsPort);
+            log("Métriques exposées sur http://localhost:" + metricsPort + "/metrics");
+        } catch (IOException e) {
+            log("Impossible de démarrer le serveur de métriques : " + e.getMessage());
+        }
+    }
+
     private static void startServer() {
         new Thread(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(port)) {
+            try (ServerSocket serverSocket = TransferIO.listen(port)) {
                 log("Serveur secondaire démarré sur le port " + port + ".");
 
                 while (true) {
-                    Socket clientSocket = serverSocket.accept();
+                    Socket clientSocket = TransferIO.accept(serverSocket);
                     log("Connexion acceptée de " + clientSocket.getInetAddress());
                     new FileReceiveHandler(clientSocket).start();
                 }
@@ -55,7 +109,7 @@ public class ServeurSecondaire {
 
     private static void listenForBroadcast() {
         new Thread(() -> {
-            try (DatagramSocket socket = new DatagramSocket(BROADCAST_PORT)) {
+            try (DatagramSocket socket = new DatagramSocket(broadcastPort)) {
                 byte[] buffer = new byte[1024];
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
 
@@ -105,55 +159,97 @@ public class ServeurSecondaire {
 
         @Override
         public void run() {
+            Metrics.Gauge inFlight = Metrics.gauge("pftp_connections_in_flight");
+            inFlight.inc();
             try (
                 DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
                 DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
             ) {
                 String command = dis.readUTF();
                 log("Commande reçue : " + command);
+                long start = System.nanoTime();
 
                 if ("store".equals(command)) {
-                    receiveFile(dis, dos);
+                    receiveFile(dis, dos, BandwidthScheduler.TrafficClass.FOREGROUND);
+                } else if ("STORE_AS".equals(command)) {
+                    // Même format que store, précédé de la classe de trafic (replication, rebalance...)
+                    String label = dis.readUTF();
+                    try {
+                        receiveFile(dis, dos, BandwidthScheduler.TrafficClass.fromLabel(label));
+                    } catch (IllegalArgumentException e) {
+                        dos.writeUTF("Classe de trafic inconnue : " + label);
+                    }
+                } else if ("COMPOSE_PART".equals(command)) {
+                    composePart(dis, dos, BandwidthScheduler.TrafficClass.FOREGROUND);
+                } else if ("COMPOSE_AS".equals(command)) {
+                    String label = dis.readUTF();
+                    try {
+                        composePart(dis, dos, BandwidthScheduler.TrafficClass.fromLabel(label));
+                    } catch (IllegalArgumentException e) {
+                        dos.writeUTF("Classe de trafic inconnue : " + label);
+                    }
+                } else if ("PART_SIGNATURES".equals(command)) {
+                    handlePartSignatures(dis, dos);
                 } else if ("GET_PART".equals(command)) {
                     handleGetPart(dis, dos);
                 } else if ("DELETE_PART".equals(command)) {
                     handleDeletePart(dis, dos);
+                } else if ("DELETE_PARTS".equals(command)) {
+                    handleDeleteParts(dis, dos);
+                } else if ("LIST_PARTS".equals(command)) {
+                    handleListParts(dos);
+                } else if ("PART_INFO".equals(command)) {
+                    handlePartInfo(dis, dos);
+                } else if ("PUSH_PART".equals(command)) {
+                    handlePushPart(dis, dos);
+                } else if ("PING".equals(command)) {
+                    dos.writeUTF("PONG");
+                } else if ("STATS".equals(command)) {
+                    Metrics.writeStats(dos);
+                } else if ("SET_QOS".equals(command)) {
+                    setQos(dis, dos);
                 } else {
                     dos.writeUTF("Commande non reconnue");
                     log("Commande non reconnue envoyée au client");
+                    command = "unknown"; // Ne pas créer une série par commande inconnue
                 }
+                Metrics.counter("pftp_commands_total", "command", command).inc();
+                Metrics.recordSince(Metrics.histogram("pftp_command_duration_seconds", "command", command), start);
 
             } catch (IOException e) {
                 log("Erreur avec le client : " + e.getMessage());
+            } finally {
+                inFlight.dec();
             }
         }
 
-        private void receiveFile(DataInputStream dis, DataOutputStream dos) {
+        private void receiveFile(DataInputStream dis, DataOutputStream dos, BandwidthScheduler.TrafficClass trafficClass) {
             try {
                 String fileName = dis.readUTF();
                 long fileSize = dis.readLong();
                 log("Réception du fichier : " + fileName + " de taille : " + fileSize);
 
-                File file = new File("storage/" + fileName);
-                file.getParentFile().mkdirs();
-
-                try (FileOutputStream fos = new FileOutputStream(file)) {
-                    byte[] buffer = new byte[4096];
-                    long totalRead = 0;
-                    int bytesRead;
-
-                    while (totalRead < fileSize && (bytesRead = dis.read(buffer)) != -1) {
-                        fos.write(buffer, 0, bytesRead);
-                        totalRead += bytesRead;
-                    }
+                long start = System.nanoTime();
+                try (BandwidthScheduler.Stream stream = BandwidthScheduler.open(trafficClass, clientSocket.getInetAddress().getHostAddress())) {
+                    store.write(fileName, fileSize, TransferIO.readableChannel(clientSocket), stream);
                 }
+                Metrics.recordTransfer("received", clientSocket.getInetAddress().getHostAddress(), fileSize, start);
 
                 log("Fichier " + fileName + " reçu et sauvegardé.");
                 dos.writeUTF("Fichier reçu et sauvegardé avec succès.");
-
-                // Réplication
-                if (!replicatedFiles.contains(fileName)) {
-                    replicateFile(fileName, fileSize, otherServerIp, otherServerPort);
+                long ackedAt = System.nanoTime();
+
+                // Réplication (une copie reçue d'un autre serveur est elle-même une réplique)
+                if (trafficClass == BandwidthScheduler.TrafficClass.FOREGROUND && !replicatedFiles.contains(fileName)) {
+                    Metrics.Gauge pending = Metrics.gauge("pftp_replications_pending");
+                    pending.inc();
+                    try {
+                        replicateFile(fileName, fileSize, otherServerIp, otherServerPort);
+                    } finally {
+                        pending.dec();
+                    }
+                    // Retard de la réplique par rapport à l'accusé de réception envoyé à l'émetteur
+                    Metrics.recordSince(Metrics.histogram("pftp_replication_lag_seconds"), ackedAt);
                     replicatedFiles.add(fileName); // Marquer la réplication comme effectuée
                 }
 
@@ -167,6 +263,202 @@ public class ServeurSecondaire {
             }
         }
 
+        // Partie construite sur place pour un upload différentiel (voir DeltaSync) : nom, taille, nombre de
+        // morceaux, puis les morceaux dans l'ordre, plages de parties locales ou octets reçus sur la connexion.
+        // Réponse : SUCCESS et le CRC32C de la partie. Une partie composée au premier plan est répliquée avec
+        // la même recette (l'autre serveur détient en principe les répliques des parties sources), et
+        // intégralement si celui-ci ne peut pas la reconstruire.
+        private void composePart(DataInputStream dis, DataOutputStream dos, BandwidthScheduler.TrafficClass trafficClass) throws IOException {
+            String partName = dis.readUTF();
+            long length = dis.readLong();
+            int pieceCount = dis.readInt();
+            log("Composition de la partie : " + partName + " de taille : " + length + " en " + pieceCount + " morceaux");
+
+            long start = System.nanoTime();
+            ComposedChannel content;
+            SegmentStore.Entry entry;
+            try (BandwidthScheduler.Stream stream = BandwidthScheduler.open(trafficClass, clientSocket.getInetAddress().getHostAddress())) {
+                content = new ComposedChannel(dis, pieceCount, stream);
+                entry = store.write(partName, length, content);
+                if (!content.complete()) {
+                    store.delete(partName);
+                    throw new IOException("Morceaux incohérents avec la taille annoncée (" + length + " octets)");
+                }
+            } catch (IOException e) {
+                dos.writeUTF("Erreur lors de la composition de " + partName + " : " + e.getMessage());
+                log("Erreur lors de la composition de " + partName + " : " + e.getMessage());
+                return;
+            }
+            Metrics.recordTransfer("received", clientSocket.getInetAddress().getHostAddress(), content.literalBytes, start);
+            Metrics.counter("pftp_compose_copied_bytes_total").add(length - content.literalBytes);
+
+            dos.writeUTF("SUCCESS");
+            dos.writeLong(entry.checksum);
+            log("Partie " + partName + " composée (" + content.literalBytes + " octets reçus sur " + length + ")");
+            long ackedAt = System.nanoTime();
+
+            if (trafficClass == BandwidthScheduler.TrafficClass.FOREGROUND && !replicatedFiles.contains(partName)) {
+                Metrics.Gauge pending = Metrics.gauge("pftp_replications_pending");
+                pending.inc();
+                try {
+                    if (!replicateComposed(partName, content.pieces, entry)) {
+                        replicateFile(partName, length, otherServerIp, otherServerPort);
+                    }
+                } finally {
+                    pending.dec();
+                }
+                Metrics.recordSince(Metrics.histogram("pftp_replication_lag_seconds"), ackedAt);
+                replicatedFiles.add(partName);
+            }
+        }
+
+        // Envoie la recette d'une partie composée à l'autre serveur ; les octets littéraux sont relus dans la
+        // partie locale. Faux si l'autre serveur n'a pas pu la reconstruire à l'identique.
+        private boolean replicateComposed(String partName, List<Piece> pieces, SegmentStore.Entry composed) {
+            if (otherServerIp.equals("") || otherServerPort == 0) {
+                return false;
+            }
+            String target = otherServerIp + ":" + otherServerPort;
+            long start = System.nanoTime();
+            try (Socket socket = TransferIO.connect(otherServerIp, otherServerPort);
+                 DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                 DataInputStream in = new DataInputStream(socket.getInputStream());
+                 BandwidthScheduler.Stream stream = BandwidthScheduler.open(BandwidthScheduler.TrafficClass.REPLICATION, target)) {
+
+                Long sent = store.read(partName, (entry, segment, position) -> {
+                    out.writeUTF("COMPOSE_AS");
+                    out.writeUTF(BandwidthScheduler.TrafficClass.REPLICATION.label());
+                    out.writeUTF(partName);
+                    out.writeLong(entry.length);
+                    out.writeInt(pieces.size());
+                    long literal = 0;
+                    for (Piece piece : pieces) {
+                        if (piece.source != null) {
+                            out.writeByte(DeltaSync.OP_COPY);
+                            out.writeUTF(piece.source);
+                            out.writeLong(piece.sourceOffset);
+                            out.writeLong(piece.length);
+                        } else {
+                            out.writeByte(DeltaSync.OP_LITERAL);
+                            out.writeLong(piece.length);
+                            out.flush();
+                            TransferIO.send(segment, position + piece.offset, piece.length, socket, null, stream);
+                            literal += piece.length;
+                        }
+                    }
+                    out.flush();
+                    return literal;
+                });
+                if (sent == null || !"SUCCESS".equals(in.readUTF()) || in.readLong() != composed.checksum) {
+                    log("Réplication par recette impossible pour " + partName + " vers " + target);
+                    return false;
+                }
+                Metrics.recordTransfer("replicated", target, sent, start);
+                log("Partie composée " + partName + " répliquée à " + target + " (" + sent + " octets envoyés)");
+                informPrincipal(partName, otherServerIp, otherServerPort);
+                return true;
+            } catch (IOException e) {
+                log("Réplication par recette impossible pour " + partName + " vers " + target + " : " + e.getMessage());
+                return false;
+            }
+        }
+
+        // Contenu d'une partie en cours de composition. Les en-têtes des morceaux sont lus au fur et à mesure :
+        // les octets littéraux suivent leur en-tête sur la connexion. Les plages sont relues dans le stockage
+        // tranche par tranche, chacune sous le verrou de lecture des segments.
+        private class ComposedChannel implements ReadableByteChannel {
+            private final DataInputStream dis;
+            private final ReadableByteChannel socketChannel;
+            private final BandwidthScheduler.Stream stream;
+            private int piecesLeft;
+            private Piece current;
+            private long consumed; // Octets déjà fournis du morceau courant
+            private long position; // Position dans la nouvelle partie
+            final List<Piece> pieces = new ArrayList<>();
+            long literalBytes;
+
+            ComposedChannel(DataInputStream dis, int pieceCount, BandwidthScheduler.Stream stream) throws IOException {
+                this.dis = dis;
+                this.socketChannel = TransferIO.readableChannel(clientSocket);
+                this.stream = stream;
+                this.piecesLeft = pieceCount;
+            }
+
+            // Vrai si tous les morceaux annoncés ont été lus en entier
+            boolean complete() {
+                return piecesLeft == 0 && (current == null || consumed == current.length);
+            }
+
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                while (current == null || consumed == current.length) {
+                    if (piecesLeft == 0) {
+                        return -1;
+                    }
+                    nextPiece();
+                }
+                int limit = dst.limit();
+                dst.limit(dst.position() + (int) Math.min(dst.remaining(), current.length - consumed));
+                int read;
+                try {
+                    if (current.source == null) {
+                        read = socketChannel.read(dst);
+                        if (read > 0) {
+                            stream.accept(read);
+                        }
+                    } else {
+                        Integer copied = store.read(current.source, (entry, segment, start) -> {
+                            if (current.sourceOffset + current.length > entry.length) {
+                                throw new EOFException("Plage hors de la partie " + current.source);
+                            }
+                            return segment.read(dst, start + current.sourceOffset + consumed);
+                        });
+                        if (copied == null) {
+                            throw new FileNotFoundException("Partie source absente : " + current.source);
+                        }
+                        read = copied;
+                    }
+                } finally {
+                    dst.limit(limit);
+                }
+                if (read < 0) {
+                    throw new EOFException("Morceau interrompu");
+                }
+                consumed += read;
+                position += read;
+                return read;
+            }
+
+            private void nextPiece() throws IOException {
+                byte op = dis.readByte();
+                if (op == DeltaSync.OP_COPY) {
+                    String source = dis.readUTF();
+                    long sourceOffset = dis.readLong();
+                    current = new Piece(source, sourceOffset, dis.readLong(), position);
+                } else if (op == DeltaSync.OP_LITERAL) {
+                    current = new Piece(null, 0, dis.readLong(), position);
+                    literalBytes += current.length;
+                } else {
+                    throw new IOException("Morceau inconnu : " + op);
+                }
+                if (current.length < 0) {
+                    throw new IOException("Longueur de morceau invalide : " + current.length);
+                }
+                pieces.add(current);
+                consumed = 0;
+                piecesLeft--;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+
         private void replicateFile(String fileName, long fileSize, String otherServerIp, int otherServerPort) {
             // Choisir un autre serveur secondaire pour la réplication
 
@@ -176,21 +468,26 @@ public class ServeurSecondaire {
             }
 
             System.out.println("Début de la réplication du fichier : " + fileName + " vers " + otherServerIp + ":" + otherServerPort);
+            long start = System.nanoTime();
 
-            try (Socket socket = new Socket(otherServerIp, otherServerPort);
+            try (Socket socket = TransferIO.connect(otherServerIp, otherServerPort);
                  DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-                 FileInputStream fis = new FileInputStream("storage/" + fileName)) {
-
-                dos.writeUTF("store");
-                dos.writeUTF(fileName);
-                dos.writeLong(fileSize);
-
-                byte[] buffer = new byte[4096];
-                int bytesRead;
-                while ((bytesRead = fis.read(buffer)) != -1) {
-                    dos.write(buffer, 0, bytesRead);
+                 BandwidthScheduler.Stream stream = BandwidthScheduler.open(BandwidthScheduler.TrafficClass.REPLICATION,
+                         otherServerIp + ":" + otherServerPort)) {
+
+                Long sent = store.read(fileName, (entry, segment, position) -> {
+                    dos.writeUTF("STORE_AS");
+                    dos.writeUTF(BandwidthScheduler.TrafficClass.REPLICATION.label());
+                    dos.writeUTF(fileName);
+                    dos.writeLong(entry.length);
+                    TransferIO.send(segment, position, entry.length, socket, null, stream);
+                    return entry.length;
+                });
+                if (sent == null) {
+                    throw new FileNotFoundException("Partie " + fileName + " absente du stockage local");
                 }
 
+                Metrics.recordTransfer("replicated", otherServerIp + ":" + otherServerPort, fileSize, start);
                 System.out.println("Fichier " + fileName + " répliqué à " + otherServerIp + ":" + otherServerPort);
                 log("Fichier " + fileName + " répliqué à " + otherServerIp + ":" + otherServerPort);
 
@@ -198,13 +495,14 @@ public class ServeurSecondaire {
                 informPrincipal(fileName, otherServerIp, otherServerPort);
 
             } catch (IOException e) {
+                Metrics.counter("pftp_replication_errors_total").inc();
                 System.out.println("Erreur lors de la réplication du fichier : " + e.getMessage());
                 log("Erreur lors de la réplication du fichier : " + e.getMessage());
             }
         }
 
         private void informPrincipal(String fileName, String otherServerIp, int otherServerPort) {
-            try (Socket socket = new Socket("127.0.0.1", 6000); // Adresse IP et port du serveur principal
+            try (Socket socket = TransferIO.connect(principalIp, principalPort); // Adresse IP et port du serveur principal
                  DataOutputStream dos = new DataOutputStream(socket.getOutputStream())) {
 
                 dos.writeUTF("REPLICATION_INFO");
@@ -224,20 +522,21 @@ public class ServeurSecondaire {
         private void handleGetPart(DataInputStream dis, DataOutputStream dos) throws IOException {
             String partName = dis.readUTF();
             log("Demande de partie reçue : " + partName);
-            File partFile = new File("storage", partName);
-
-            if (partFile.exists() && partFile.isFile()) {
-                dos.writeUTF("PART_FOUND");
-                dos.writeLong(partFile.length());
-                log("Partie trouvée et taille envoyée : " + partName);
-
-                try (FileInputStream fis = new FileInputStream(partFile)) {
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = fis.read(buffer)) != -1) {
-                        dos.write(buffer, 0, bytesRead);
-                    }
-                }
+            long start = System.nanoTime();
+
+            Long sent;
+            try (BandwidthScheduler.Stream stream = BandwidthScheduler.open(BandwidthScheduler.TrafficClass.FOREGROUND,
+                    clientSocket.getInetAddress().getHostAddress())) {
+                sent = store.read(partName, (entry, segment, position) -> {
+                    dos.writeUTF("PART_FOUND");
+                    dos.writeLong(entry.length);
+                    log("Partie trouvée et taille envoyée : " + partName);
+                    TransferIO.send(segment, position, entry.length, clientSocket, null, stream);
+                    return entry.length;
+                });
+            }
+            if (sent != null) {
+                Metrics.recordTransfer("sent", clientSocket.getInetAddress().getHostAddress(), sent, start);
                 log("Partie " + partName + " envoyée au client");
             } else {
                 dos.writeUTF("PART_NOT_FOUND");
@@ -245,12 +544,108 @@ public class ServeurSecondaire {
             }
         }
 
+        // Signatures des blocs complets d'une partie pour un upload différentiel : PART_FOUND, taille de la
+        // partie, puis nombre de blocs et signatures (DeltaSync.writeSignatures)
+        private void handlePartSignatures(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String partName = dis.readUTF();
+            int blockSize = dis.readInt();
+            if (blockSize < DeltaSync.MIN_BLOCK_SIZE || blockSize > DeltaSync.MAX_BLOCK_SIZE) {
+                dos.writeUTF("Taille de bloc invalide : " + blockSize);
+                return;
+            }
+            Long length = store.read(partName, (entry, segment, position) -> {
+                dos.writeUTF("PART_FOUND");
+                dos.writeLong(entry.length);
+                DeltaSync.writeSignatures(segment, position, entry.length, blockSize, dos);
+                return entry.length;
+            });
+            if (length == null) {
+                dos.writeUTF("PART_NOT_FOUND");
+            } else {
+                log("Signatures de " + partName + " envoyées (blocs de " + blockSize + " octets)");
+            }
+        }
+
+        // Taille et CRC32C d'une partie, utilisés par le principal pour valider un upload direct
+        private void handlePartInfo(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String partName = dis.readUTF();
+            SegmentStore.Entry entry = store.lookup(partName);
+
+            if (entry != null) {
+                dos.writeUTF("PART_FOUND");
+                dos.writeLong(entry.length);
+                dos.writeLong(entry.checksum);
+            } else {
+                dos.writeUTF("PART_NOT_FOUND");
+            }
+        }
+
+        // Copie une partie locale vers un autre serveur de stockage, à la demande du principal
+        // (rééquilibrage ou réparation, selon la classe de trafic)
+        private void handlePushPart(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String partName = dis.readUTF();
+            String target = dis.readUTF();
+            String label = dis.readUTF();
+            BandwidthScheduler.TrafficClass trafficClass;
+            try {
+                trafficClass = BandwidthScheduler.TrafficClass.fromLabel(label);
+            } catch (IllegalArgumentException e) {
+                dos.writeUTF("Classe de trafic inconnue : " + label);
+                return;
+            }
+            String targetIp = target.substring(0, target.lastIndexOf(':'));
+            int targetPort = Integer.parseInt(target.substring(target.lastIndexOf(':') + 1));
+            long start = System.nanoTime();
+
+            try (Socket socket = TransferIO.connect(targetIp, targetPort);
+                 DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+                 DataInputStream in = new DataInputStream(socket.getInputStream());
+                 BandwidthScheduler.Stream stream = BandwidthScheduler.open(trafficClass, target)) {
+
+                Long sent = store.read(partName, (entry, segment, position) -> {
+                    out.writeUTF("STORE_AS");
+                    out.writeUTF(trafficClass.label());
+                    out.writeUTF(partName);
+                    out.writeLong(entry.length);
+                    TransferIO.send(segment, position, entry.length, socket, null, stream);
+                    return entry.length;
+                });
+                if (sent == null) {
+                    dos.writeUTF("PART_NOT_FOUND");
+                    return;
+                }
+                String response = in.readUTF();
+                if (!response.startsWith("Fichier reçu")) {
+                    dos.writeUTF("Refus de " + target + " : " + response);
+                    return;
+                }
+                Metrics.recordTransfer("pushed_" + trafficClass.label(), target, sent, start);
+                dos.writeUTF("SUCCESS");
+                log("Partie " + partName + " copiée vers " + target);
+            } catch (IOException e) {
+                dos.writeUTF("Erreur lors de la copie vers " + target + " : " + e.getMessage());
+                log("Erreur lors de la copie de " + partName + " vers " + target + " : " + e.getMessage());
+            }
+        }
+
+        // Modifie une limite de bande passante (clé vide : simple lecture de la configuration)
+        private void setQos(DataInputStream dis, DataOutputStream dos) throws IOException {
+            String key = dis.readUTF();
+            long value = dis.readLong();
+            try {
+                dos.writeUTF("OK " + (key.isEmpty() ? BandwidthScheduler.describe() : BandwidthScheduler.set(key, value)));
+                if (!key.isEmpty()) {
+                    log("Limite de bande passante modifiée : " + key + "=" + value);
+                }
+            } catch (IllegalArgumentException e) {
+                dos.writeUTF(e.getMessage());
+            }
+        }
+
         private void handleDeletePart(DataInputStream dis, DataOutputStream dos) throws IOException {
             String partName = dis.readUTF();
             log("Demande de suppression de partie reçue : " + partName);
-            File partFile = new File("storage/" + partName);
-
-            if (partFile.exists() && partFile.delete()) {
+            if (store.delete(partName)) {
                 dos.writeUTF("SUCCESS");
                 log("Partie supprimée avec succès : " + partName);
             } else {
@@ -258,5 +653,45 @@ public class ServeurSecondaire {
                 log("Échec de la suppression de la partie : " + partName);
             }
         }
+
+        // Suppression par lot envoyée par le ramasse-miettes du serveur principal : nombre de parties puis
+        // leurs noms ; une partie déjà absente compte comme supprimée. Réponse : nombre de parties effacées.
+        private void handleDeleteParts(DataInputStream dis, DataOutputStream dos) throws IOException {
+            int count = dis.readInt();
+            int deleted = 0;
+            for (int i = 0; i < count; i++) {
+                String partName = dis.readUTF();
+                if (store.delete(partName)) {
+                    deleted++;
+                }
+                replicatedFiles.remove(partName);
+            }
+            dos.writeInt(deleted);
+            log("Suppression par lot : " + deleted + "/" + count + " parties effacées");
+        }
+
+        private void handleListParts(DataOutputStream dos) throws IOException {
+            List<String> names = store.names();
+            dos.writeInt(names.size());
+            for (String name : names) {
+                dos.writeUTF(name);
+            }
+        }
+    }
+
+    // Morceau d'une partie composée : plage d'une partie locale (source) ou octets littéraux (source null),
+    // placé à offset dans la nouvelle partie
+    static class Piece {
+        final String source;
+        final long sourceOffset;
+        final long length;
+        final long offset;
+
+        Piece(String source, long sourceOffset, long length, long offset) {
+            this.source = source;
+            this.sourceOffset = sourceOffset;
+            this.length = length;
+            this.offset = offset;
+        }
     }
 }
@@ -0,0 +1,89 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32C;
+
+// Partition de l'espace de noms entre plusieurs serveurs principaux.
+// Un fichier appartient au shard crc32c(nom) mod N. Chaque principal ne tient que le catalogue de ses
+// fichiers (mapping, répliques, tombes, petits fichiers), dans son propre répertoire de travail.
+// Les clients lisent la table auprès de n'importe quel principal (SHARD_MAP) et envoient chaque commande
+// au propriétaire du fichier ; un principal qui reçoit une commande pour un autre shard répond
+// WRONG_SHARD <ip:port>. Les serveurs de stockage sont partagés : en mode partitionné, les parties créées
+// par un shard portent le préfixe shard<i>- pour que chaque principal reconnaisse les siennes.
+public class ShardMap {
+
+    private static final String PART_PREFIX = "shard";
+
+    private final List<String> peers; // Adresses ip:port des principaux, dans l'ordre des shards
+    private final int self; // Rang de ce principal (-1 côté client)
+
+    ShardMap(List<String> peers, int self) {
+        this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+        this.self = self;
+    }
+
+    // Configuration d'un principal : -Dshard.peers=ip:port,... (tous les principaux, dans le même ordre
+    // sur chacun) et -Dshard.index (rang de ce principal dans la liste). Sans shard.peers : un seul shard.
+    static ShardMap fromProperties() {
+        List<String> peers = new ArrayList<>();
+        for (String peer : System.getProperty("shard.peers", "").split(",")) {
+            if (!peer.trim().isEmpty()) {
+                peers.add(peer.trim());
+            }
+        }
+        int self = Integer.getInteger("shard.index", 0);
+        if (!peers.isEmpty() && (self < 0 || self >= peers.size())) {
+            throw new IllegalArgumentException("shard.index " + self + " hors de shard.peers (" + peers.size() + " principaux)");
+        }
+        return new ShardMap(peers, self);
+    }
+
+    static int shardOf(String fileName, int shardCount) {
+        CRC32C crc = new CRC32C();
+        crc.update(fileName.getBytes(StandardCharsets.UTF_8));
+        // crc32c est linéaire : des noms voisins ont les mêmes bits de poids faible. La multiplication
+        // de Fibonacci propage tous les bits vers le haut du mot, d'où est tiré le shard.
+        long mixed = crc.getValue() * 0x9E3779B97F4A7C15L;
+        return (int) ((mixed >>> 32) % shardCount);
+    }
+
+    boolean isSharded() {
+        return peers.size() > 1;
+    }
+
+    List<String> peers() {
+        return peers;
+    }
+
+    String ownerOf(String fileName) {
+        return peers.get(shardOf(fileName, peers.size()));
+    }
+
+    boolean owns(String fileName) {
+        return !isSharded() || shardOf(fileName, peers.size()) == self;
+    }
+
+    // Nom sous lequel ce principal range une nouvelle partie sur les serveurs de stockage
+    String partName(String baseName) {
+        return isSharded() ? PART_PREFIX + self + "-" + baseName : baseName;
+    }
+
+    boolean ownsPart(String partName) {
+        return !isSharded() || partName.startsWith(PART_PREFIX + self + "-");
+    }
+
+    // Principal qui a créé la partie, null si son nom ne porte pas de préfixe de shard valide
+    String ownerOfPart(String partName) {
+        int dash = partName.indexOf('-');
+        if (!partName.startsWith(PART_PREFIX) || dash < 0) {
+            return null;
+        }
+        try {
+            int shard = Integer.parseInt(partName.substring(PART_PREFIX.length(), dash));
+            return shard >= 0 && shard < peers.size() ? peers.get(shard) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,343 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongConsumer;
+
+// Stockage réparti sur plusieurs disques d'un serveur secondaire.
+// Chaque répertoire de données a son propre SegmentStore (segments, index, compacteur, validation groupée)
+// et son propre groupe de threads d'E/S : les lectures et écritures de disques différents avancent en
+// parallèle, et le nombre d'opérations simultanées sur un même disque est borné. Seules les opérations sur
+// les fichiers passent par ce groupe (voir DiskChannel) : la réception et l'envoi sur le réseau restent sur
+// le thread de la connexion.
+// Un index en mémoire associe chaque partie à son disque ; il est reconstruit au démarrage à partir des
+// index de chaque répertoire. Une nouvelle partie va sur le disque le moins chargé (opérations en
+// attente ou en cours), puis le plus libre ; une partie réécrite reste sur son disque, ce qui laisse au
+// SegmentStore le remplacement atomique de l'ancienne version.
+public class StripedStore {
+
+    private final List<Disk> disks = new ArrayList<>();
+    private final Map<String, Disk> diskOfPart = new ConcurrentHashMap<>();
+
+    public StripedStore(List<File> dirs, long maxSegmentSize, SegmentStore.Durability durability, long windowMillis,
+                        int threadsPerDisk) throws IOException {
+        if (dirs.isEmpty()) {
+            throw new IllegalArgumentException("Aucun répertoire de stockage");
+        }
+        try {
+            for (File dir : dirs) {
+                disks.add(new Disk(disks.size(), dir, maxSegmentSize, durability, windowMillis, threadsPerDisk));
+            }
+            // Une même partie dans deux répertoires (disque déplacé à la main) : le premier de la liste l'emporte
+            for (Disk disk : disks) {
+                for (String name : disk.store.names()) {
+                    if (diskOfPart.putIfAbsent(name, disk) != null) {
+                        disk.store.delete(name);
+                    }
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public SegmentStore.Entry write(String name, long length, ReadableByteChannel in) throws IOException {
+        return write(name, length, in, null);
+    }
+
+    public SegmentStore.Entry write(String name, long length, ReadableByteChannel in, LongConsumer progress) throws IOException {
+        Disk disk = diskOfPart.get(name);
+        if (disk == null) {
+            Disk chosen = choose(length);
+            disk = diskOfPart.putIfAbsent(name, chosen); // Deux premières écritures concurrentes : une seule place
+            if (disk == null) {
+                disk = chosen;
+            }
+        }
+        Disk target = disk;
+        try {
+            SegmentStore.Entry entry = target.store.write(name, length, in, progress);
+            diskOfPart.putIfAbsent(name, target); // Suppression concurrente qui a retiré le nom pendant l'écriture
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            // Une première écriture échouée ne doit pas réserver le nom sur ce disque
+            if (target.store.lookup(name) == null) {
+                diskOfPart.remove(name, target);
+            }
+            throw e;
+        }
+    }
+
+    public SegmentStore.Entry lookup(String name) throws IOException {
+        Disk disk = diskOfPart.get(name);
+        return disk == null ? null : disk.store.lookup(name);
+    }
+
+    public <T> T read(String name, SegmentStore.PartReader<T> reader) throws IOException {
+        Disk disk = diskOfPart.get(name);
+        if (disk == null) {
+            return null;
+        }
+        return disk.store.read(name, reader);
+    }
+
+    public boolean delete(String name) throws IOException {
+        Disk disk = diskOfPart.get(name);
+        if (disk == null) {
+            return false;
+        }
+        boolean deleted = onDisk(disk, () -> disk.store.delete(name));
+        if (disk.store.lookup(name) == null) {
+            diskOfPart.remove(name, disk);
+        }
+        return deleted;
+    }
+
+    public List<String> names() {
+        return new ArrayList<>(diskOfPart.keySet());
+    }
+
+    public void startCompactor(long intervalSeconds, double liveRatioThreshold) {
+        for (Disk disk : disks) {
+            disk.store.startCompactor(intervalSeconds, liveRatioThreshold);
+        }
+    }
+
+    public List<File> dirs() {
+        List<File> dirs = new ArrayList<>();
+        for (Disk disk : disks) {
+            dirs.add(disk.dir);
+        }
+        return Collections.unmodifiableList(dirs);
+    }
+
+    // Disque le moins chargé parmi ceux qui ont la place de recevoir length octets, puis le plus libre
+    private Disk choose(long length) throws IOException {
+        Disk best = null;
+        long bestFree = 0;
+        int bestDepth = 0;
+        for (Disk disk : disks) {
+            long free = disk.dir.getUsableSpace();
+            disk.freeGauge.set(free);
+            int depth = disk.depth.get();
+            if (free < length) {
+                continue;
+            }
+            if (best == null || depth < bestDepth || (depth == bestDepth && free > bestFree)) {
+                best = disk;
+                bestFree = free;
+                bestDepth = depth;
+            }
+        }
+        if (best == null) {
+            throw new IOException("Espace insuffisant sur tous les disques pour " + length + " octets");
+        }
+        return best;
+    }
+
+    // Exécute task sur le groupe de threads du disque et attend son résultat
+    private static <T> T onDisk(Disk disk, Callable<T> task) throws IOException {
+        disk.depth.incrementAndGet();
+        disk.depthGauge.set(disk.depth.get());
+        try {
+            Future<T> result = disk.pool.submit(() -> call(task));
+            try {
+                return result.get();
+            } catch (InterruptedException e) {
+                // Sans interrompre la tâche : un FileChannel interrompu se ferme pour tout le segment
+                result.cancel(false);
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Opération sur " + disk.dir + " interrompue");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                }
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        } finally {
+            disk.depth.decrementAndGet();
+            disk.depthGauge.set(disk.depth.get());
+        }
+    }
+
+    private static <T> T call(Callable<T> task) throws IOException {
+        try {
+            return task.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void close() {
+        for (Disk disk : disks) {
+            disk.pool.shutdown();
+        }
+    }
+
+    private static class Disk {
+        final File dir;
+        final String label;
+        final SegmentStore store;
+        final ExecutorService pool;
+        final AtomicInteger depth = new AtomicInteger(); // Opérations en attente ou en cours
+        final Metrics.Gauge depthGauge;
+        final Metrics.Gauge freeGauge;
+
+        Disk(int rank, File dir, long maxSegmentSize, SegmentStore.Durability durability, long windowMillis,
+             int threads) throws IOException {
+            this.dir = dir;
+            this.label = dir.getPath();
+            this.depthGauge = Metrics.gauge("pftp_disk_queue_depth", "disk", label);
+            this.freeGauge = Metrics.gauge("pftp_disk_free_bytes", "disk", label);
+            freeGauge.set(dir.getUsableSpace());
+            AtomicInteger count = new AtomicInteger();
+            this.pool = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, "disk-" + rank + "-io-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            try {
+                this.store = new SegmentStore(dir, maxSegmentSize, durability, windowMillis, segment -> new DiskChannel(this, segment));
+            } catch (IOException | RuntimeException e) {
+                pool.shutdown();
+                throw e;
+            }
+        }
+    }
+
+    // Segment vu à travers le groupe de threads de son disque : les lectures et écritures positionnelles, et
+    // les copies entre fichiers, y sont exécutées. Un transfert depuis ou vers une socket reste sur le thread
+    // appelant : il avance au rythme du pair, et deux serveurs qui s'envoient des parties dans les deux sens
+    // pourraient sinon occuper tous les threads de leurs disques en s'attendant l'un l'autre.
+    private static class DiskChannel extends FileChannel {
+        private final Disk disk;
+        private final FileChannel segment;
+
+        DiskChannel(Disk disk, FileChannel segment) {
+            this.disk = disk;
+            this.segment = segment;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return onDisk(disk, () -> segment.read(dst));
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return onDisk(disk, () -> segment.read(dsts, offset, length));
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return onDisk(disk, () -> segment.read(dst, position));
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return onDisk(disk, () -> segment.write(src));
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return onDisk(disk, () -> segment.write(srcs, offset, length));
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return onDisk(disk, () -> segment.write(src, position));
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            if (target instanceof FileChannel) {
+                return onDisk(disk, () -> segment.transferTo(position, count, target));
+            }
+            return segment.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            if (src instanceof FileChannel) {
+                return onDisk(disk, () -> segment.transferFrom(src, position, count));
+            }
+            return segment.transferFrom(src, position, count);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return segment.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            segment.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return segment.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            onDisk(disk, () -> segment.truncate(size));
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            onDisk(disk, () -> {
+                segment.force(metaData);
+                return null;
+            });
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return segment.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return segment.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return segment.tryLock(position, size, shared);
+        }
+
+        // Le segment appartient au SegmentStore, qui le ferme lui-même
+        @Override
+        protected void implCloseChannel() {
+        }
+    }
+}
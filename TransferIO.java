@@ -0,0 +1,162 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+// Ouverture et réglage des sockets, et boucles de copie entre fichiers et connexions.
+// Les sockets sont adossées à des canaux NIO bloquants : les envois de fichiers passent par
+// FileChannel.transferTo (sans recopie en mémoire utilisateur) et les réceptions par des tampons
+// directs du BufferPool. Les en-têtes du protocole restent lus et écrits avec des DataInput/OutputStream
+// non bufferisés sur la même socket, ce qui permet d'alterner flux et canal sans perdre d'octets.
+public class TransferIO {
+
+    private static final int SOCKET_BUFFER = Integer.getInteger("socket.buffer", 1024 * 1024); // SO_SNDBUF et SO_RCVBUF (0 = valeurs du système)
+
+    // Socket d'écoute dont les connexions acceptées ont un canal ; le tampon de réception est fixé
+    // avant bind pour que la fenêtre TCP annoncée puisse dépasser 64 Ko
+    static ServerSocket listen(int port) throws IOException {
+        ServerSocket serverSocket = ServerSocketChannel.open().socket();
+        try {
+            if (SOCKET_BUFFER > 0) {
+                serverSocket.setReceiveBufferSize(SOCKET_BUFFER);
+            }
+            serverSocket.bind(new InetSocketAddress(port));
+            return serverSocket;
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+    }
+
+    static Socket accept(ServerSocket serverSocket) throws IOException {
+        Socket socket = serverSocket.accept();
+        tune(socket);
+        return socket;
+    }
+
+    static Socket connect(String host, int port) throws IOException {
+        return connect(host, port, 0);
+    }
+
+    // timeoutMillis borne l'établissement de la connexion (0 = attente illimitée)
+    static Socket connect(String host, int port, int timeoutMillis) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            Socket socket = channel.socket();
+            tune(socket);
+            socket.connect(new InetSocketAddress(host, port), timeoutMillis);
+            return socket;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Les commandes sont de petits messages suivis d'une attente de réponse : Nagle ne ferait que les retarder
+    static void tune(Socket socket) throws SocketException {
+        socket.setTcpNoDelay(true);
+        if (SOCKET_BUFFER > 0) {
+            socket.setSendBufferSize(SOCKET_BUFFER);
+            socket.setReceiveBufferSize(SOCKET_BUFFER);
+        }
+    }
+
+    // Envoie length octets de file à partir de position. Sans somme de contrôle, les octets vont du cache
+    // de pages à la socket par transferTo ; avec, ils passent par un tampon direct pour être vérifiés.
+    // progress reçoit le nombre d'octets de chaque tranche envoyée.
+    static void send(FileChannel file, long position, long length, Socket socket, CRC32C crc, LongConsumer progress) throws IOException {
+        WritableByteChannel out = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+        int chunk = BufferPool.sizeFor(length, socket);
+        long end = position + length;
+        if (crc == null) {
+            while (position < end) {
+                long sent = file.transferTo(position, Math.min(chunk, end - position), out);
+                if (sent <= 0 && position >= file.size()) {
+                    throw new EOFException("Fichier tronqué : " + (length - (end - position)) + "/" + length + " octets");
+                }
+                position += sent;
+                if (progress != null && sent > 0) {
+                    progress.accept(sent);
+                }
+            }
+            return;
+        }
+        ByteBuffer buffer = BufferPool.acquire(chunk);
+        try {
+            while (position < end) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), end - position));
+                int read = file.read(buffer, position);
+                if (read == -1) {
+                    throw new EOFException("Fichier tronqué : " + (length - (end - position)) + "/" + length + " octets");
+                }
+                buffer.flip();
+                crc.update(buffer);
+                buffer.rewind();
+                while (buffer.hasRemaining()) {
+                    out.write(buffer);
+                }
+                position += read;
+                if (progress != null) {
+                    progress.accept(read);
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+
+    // Lit exactement length octets de la socket et les écrit dans file à partir de position
+    // (file null : les octets sont seulement consommés)
+    static void receive(Socket socket, FileChannel file, long position, long length, CRC32C crc, LongConsumer progress) throws IOException {
+        copy(readableChannel(socket), file, position, length, crc, progress, BufferPool.sizeFor(length, socket));
+    }
+
+    static ReadableByteChannel readableChannel(Socket socket) throws IOException {
+        return socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+    }
+
+    // Copie exactement length octets de in vers file (écritures positionnelles) à travers un tampon direct emprunté
+    static void copy(ReadableByteChannel in, FileChannel file, long position, long length, CRC32C crc,
+                     LongConsumer progress, int bufferSize) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire(bufferSize);
+        try {
+            long remaining = length;
+            while (remaining > 0) {
+                buffer.clear();
+                buffer.limit((int) Math.min(buffer.capacity(), remaining));
+                int read = in.read(buffer);
+                if (read == -1) {
+                    throw new EOFException("Fin de flux après " + (length - remaining) + "/" + length + " octets");
+                }
+                buffer.flip();
+                if (crc != null) {
+                    crc.update(buffer);
+                    buffer.rewind();
+                }
+                if (file != null) {
+                    while (buffer.hasRemaining()) {
+                        position += file.write(buffer, position);
+                    }
+                }
+                remaining -= read;
+                if (progress != null) {
+                    progress.accept(read);
+                }
+            }
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
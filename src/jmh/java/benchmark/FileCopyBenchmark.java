@@ -0,0 +1,86 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Copies fichier vers fichier à travers un tampon de taille donnée : TransferIO.copy seul, et le découpage
+// d'un upload en trois parties par ClientHandler.splitFile. Les parties sont écrites dans le répertoire
+// courant, comme sur le serveur principal, puis effacées.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FileCopyBenchmark {
+
+    private static final MethodHandle COPY = Internals.staticMethod("TransferIO", "copy", void.class,
+            ReadableByteChannel.class, FileChannel.class, long.class, long.class, CRC32C.class, LongConsumer.class, int.class);
+    private static final MethodHandle SPLIT = Internals.staticMethod("ServeurPrincipal$ClientHandler", "splitFile", List.class,
+            File.class, int.class, int.class);
+
+    @Param({"65536", "1048576", "16777216"})
+    public long fileSize;
+
+    @Param({"4096", "65536", "262144", "1048576"})
+    public int bufferSize;
+
+    private File workDir;
+    private File sourceFile;
+    private FileChannel source;
+    private FileChannel target;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workDir = Files.createTempDirectory("pftp-jmh").toFile();
+        sourceFile = Internals.randomFile(workDir, "source", fileSize);
+        source = new RandomAccessFile(sourceFile, "r").getChannel();
+        target = new RandomAccessFile(new File(workDir, "copie"), "rw").getChannel();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        source.close();
+        target.close();
+        Internals.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public long copy() throws Throwable {
+        source.position(0);
+        COPY.invoke((ReadableByteChannel) source, target, 0L, fileSize, (CRC32C) null, (LongConsumer) null, bufferSize);
+        return target.size();
+    }
+
+    @Benchmark
+    public int splitFile() throws Throwable {
+        List<?> parts = (List<?>) SPLIT.invoke(sourceFile, 3, bufferSize);
+        for (Object part : parts) {
+            ((File) part).delete();
+        }
+        return parts.size();
+    }
+}
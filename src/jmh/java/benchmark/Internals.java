@@ -0,0 +1,94 @@
+package benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Random;
+
+// Accès au code du serveur depuis les benchmarks.
+// JMH refuse les benchmarks du paquetage par défaut, et une classe d'un paquetage nommé ne peut pas nommer
+// celles du paquetage par défaut : les méthodes mesurées sont donc résolues une fois en MethodHandle, rangés
+// dans des champs static final que le JIT traite comme des appels directs.
+final class Internals {
+
+    private Internals() {
+    }
+
+    static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Classe introuvable : " + name, e);
+        }
+    }
+
+    static MethodHandle staticMethod(String className, String name, Class<?> returnType, Class<?>... parameters) {
+        Class<?> owner = type(className);
+        try {
+            return lookup(owner).findStatic(owner, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Méthode introuvable : " + className + "." + name, e);
+        }
+    }
+
+    static MethodHandle virtualMethod(String className, String name, Class<?> returnType, Class<?>... parameters) {
+        Class<?> owner = type(className);
+        try {
+            return lookup(owner).findVirtual(owner, name, MethodType.methodType(returnType, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Méthode introuvable : " + className + "." + name, e);
+        }
+    }
+
+    static MethodHandle constructor(String className, Class<?>... parameters) {
+        Class<?> owner = type(className);
+        try {
+            return lookup(owner).findConstructor(owner, MethodType.methodType(void.class, parameters));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Constructeur introuvable : " + className, e);
+        }
+    }
+
+    static MethodHandle getter(String className, String field, Class<?> type) {
+        Class<?> owner = type(className);
+        try {
+            return lookup(owner).findGetter(owner, field, type);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Champ introuvable : " + className + "." + field, e);
+        }
+    }
+
+    // Les méthodes mesurées sont package-private ; le module sans nom ouvre tous ses paquetages
+    private static MethodHandles.Lookup lookup(Class<?> owner) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(owner, MethodHandles.lookup());
+    }
+
+    static File randomFile(File dir, String name, long size) throws IOException {
+        File file = new File(dir, name);
+        Random random = new Random(42);
+        byte[] buffer = new byte[64 * 1024];
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            long remaining = size;
+            while (remaining > 0) {
+                random.nextBytes(buffer);
+                int chunk = (int) Math.min(buffer.length, remaining);
+                fos.write(buffer, 0, chunk);
+                remaining -= chunk;
+            }
+        }
+        return file;
+    }
+
+    static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
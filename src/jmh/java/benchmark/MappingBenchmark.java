@@ -0,0 +1,63 @@
+package benchmark;
+
+import java.lang.invoke.MethodHandle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Recherche des parties d'un fichier dans le mapping, comme assembleFileFromParts, et écriture d'une ligne
+// de journal du serveur principal (fichier ServeurPrincipal.log du répertoire courant).
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MappingBenchmark {
+
+    private static final MethodHandle FIND_PARTS = Internals.staticMethod("ServeurPrincipal$ClientHandler", "findPartsInMapping",
+            Map.class, List.class, String.class);
+    private static final MethodHandle LOG = Internals.staticMethod("ServeurPrincipal", "log", void.class, String.class);
+
+    @Param({"1000", "100000"})
+    public int mappingEntries;
+
+    private List<String> mappingLines;
+    private String requested;
+
+    // Même format que file_mapping.conf : fichier,partie,ip:port,taille,crc32c (trois parties par fichier)
+    @Setup(Level.Trial)
+    public void setUp() {
+        mappingLines = new ArrayList<>(mappingEntries);
+        for (int i = 0; i < mappingEntries / 3; i++) {
+            for (int p = 0; p < 3; p++) {
+                mappingLines.add("fichier" + i + ".bin,temp_fichier" + i + ".bin.part" + p + ",127.0.0.1:500" + (3 + p) + ",1048576,0");
+            }
+        }
+        requested = "fichier" + (mappingEntries / 6) + ".bin";
+    }
+
+    @Benchmark
+    public Object findPartsInMapping() throws Throwable {
+        return FIND_PARTS.invoke(mappingLines, requested);
+    }
+
+    @Benchmark
+    public void log() throws Throwable {
+        LOG.invoke("Message de benchmark");
+    }
+}
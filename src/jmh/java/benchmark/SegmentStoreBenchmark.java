@@ -0,0 +1,106 @@
+package benchmark;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandleProxies;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Écriture et lecture d'une partie dans le stockage journalisé d'un serveur secondaire. Chaque écriture
+// remplace la même partie ; le compacteur est lancé entre deux itérations pour borner la place occupée.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SegmentStoreBenchmark {
+
+    private static final Class<?> ENTRY = Internals.type("SegmentStore$Entry");
+    private static final Class<?> DURABILITY = Internals.type("SegmentStore$Durability");
+    private static final Class<?> PART_READER = Internals.type("SegmentStore$PartReader");
+    private static final MethodHandle DURABILITY_OF = Internals.staticMethod("SegmentStore$Durability", "fromLabel", DURABILITY, String.class);
+    private static final MethodHandle OPEN = Internals.constructor("SegmentStore", File.class, long.class, DURABILITY, long.class);
+    private static final MethodHandle WRITE = Internals.virtualMethod("SegmentStore", "write", ENTRY,
+            String.class, long.class, ReadableByteChannel.class);
+    private static final MethodHandle READ = Internals.virtualMethod("SegmentStore", "read", Object.class, String.class, PART_READER);
+    private static final MethodHandle COMPACT = Internals.virtualMethod("SegmentStore", "compact", void.class, double.class);
+
+    @Param({"65536", "1048576", "16777216"})
+    public long fileSize;
+
+    @Param({"none", "sync"})
+    public String durability;
+
+    private File workDir;
+    private FileChannel source;
+    private Object store;
+    private Object reader;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        workDir = Files.createTempDirectory("pftp-jmh").toFile();
+        source = new RandomAccessFile(Internals.randomFile(workDir, "source", fileSize), "r").getChannel();
+        store = OPEN.invoke(new File(workDir, "stockage"), 256L * 1024 * 1024, DURABILITY_OF.invoke(durability), 2L);
+        WRITE.invoke(store, "lue", fileSize, (ReadableByteChannel) source);
+        MethodHandle readInto = MethodHandles.lookup().findStatic(SegmentStoreBenchmark.class, "readInto",
+                MethodType.methodType(Object.class, ByteBuffer.class, Object.class, FileChannel.class, long.class));
+        reader = MethodHandleProxies.asInterfaceInstance(PART_READER,
+                MethodHandles.insertArguments(readInto, 0, ByteBuffer.allocateDirect((int) fileSize)));
+    }
+
+    @TearDown(Level.Iteration)
+    public void compact() throws Throwable {
+        COMPACT.invoke(store, 1.0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        source.close();
+        Internals.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public Object write() throws Throwable {
+        source.position(0);
+        return WRITE.invoke(store, "ecrite", fileSize, (ReadableByteChannel) source);
+    }
+
+    @Benchmark
+    public Object read() throws Throwable {
+        return READ.invoke(store, "lue", reader);
+    }
+
+    // PartReader : lit toute la partie dans buffer
+    private static Object readInto(ByteBuffer buffer, Object entry, FileChannel segment, long position) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (segment.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Partie tronquée");
+            }
+        }
+        return buffer;
+    }
+}
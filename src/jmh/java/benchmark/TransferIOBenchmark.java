@@ -0,0 +1,134 @@
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32C;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// TransferIO.send et TransferIO.receive sur des connexions locales ouvertes comme celles des serveurs
+// (listen, accept, connect). send est le chemin de sendFileToStorageServer, de la réplication et de
+// handleGetPart ; receive celui de receiveFile. Un pair vide ou alimente la connexion en continu.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransferIOBenchmark {
+
+    private static final MethodHandle LISTEN = Internals.staticMethod("TransferIO", "listen", ServerSocket.class, int.class);
+    private static final MethodHandle ACCEPT = Internals.staticMethod("TransferIO", "accept", Socket.class, ServerSocket.class);
+    private static final MethodHandle CONNECT = Internals.staticMethod("TransferIO", "connect", Socket.class, String.class, int.class);
+    private static final MethodHandle SEND = Internals.staticMethod("TransferIO", "send", void.class,
+            FileChannel.class, long.class, long.class, Socket.class, CRC32C.class, LongConsumer.class);
+    private static final MethodHandle RECEIVE = Internals.staticMethod("TransferIO", "receive", void.class,
+            Socket.class, FileChannel.class, long.class, long.class, CRC32C.class, LongConsumer.class);
+
+    @Param({"65536", "1048576", "16777216"})
+    public long fileSize;
+
+    @Param({"false", "true"})
+    public boolean checksum;
+
+    private File workDir;
+    private FileChannel source;
+    private FileChannel target;
+    private ServerSocket server;
+    private Socket sender;
+    private Socket drained;
+    private Socket receiver;
+    private Socket feeder;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        workDir = Files.createTempDirectory("pftp-jmh").toFile();
+        source = new RandomAccessFile(Internals.randomFile(workDir, "source", fileSize), "r").getChannel();
+        target = new RandomAccessFile(new File(workDir, "recu"), "rw").getChannel();
+        server = (ServerSocket) LISTEN.invoke(0);
+        int port = server.getLocalPort();
+
+        sender = (Socket) CONNECT.invoke("127.0.0.1", port);
+        drained = (Socket) ACCEPT.invoke(server);
+        daemon(() -> {
+            InputStream in = drained.getInputStream();
+            byte[] buffer = new byte[256 * 1024];
+            while (in.read(buffer) != -1) {
+                // Octets jetés
+            }
+        });
+
+        feeder = (Socket) CONNECT.invoke("127.0.0.1", port);
+        receiver = (Socket) ACCEPT.invoke(server);
+        daemon(() -> {
+            OutputStream out = feeder.getOutputStream();
+            byte[] buffer = new byte[256 * 1024];
+            while (true) {
+                out.write(buffer);
+            }
+        });
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (AutoCloseable closeable : new AutoCloseable[]{sender, drained, receiver, feeder, server, source, target}) {
+            try {
+                closeable.close();
+            } catch (Exception ignored) {
+            }
+        }
+        Internals.deleteRecursively(workDir);
+    }
+
+    @Benchmark
+    public long send() throws Throwable {
+        CRC32C crc = checksum ? new CRC32C() : null;
+        SEND.invoke(source, 0L, fileSize, sender, crc, (LongConsumer) null);
+        return crc == null ? fileSize : crc.getValue();
+    }
+
+    @Benchmark
+    public long receive() throws Throwable {
+        CRC32C crc = checksum ? new CRC32C() : null;
+        RECEIVE.invoke(receiver, target, 0L, fileSize, crc, (LongConsumer) null);
+        return crc == null ? fileSize : crc.getValue();
+    }
+
+    interface Loop {
+        void run() throws IOException;
+    }
+
+    // Pair de la connexion ; il s'arrête quand la connexion est fermée au démontage
+    private static void daemon(Loop loop) {
+        Thread thread = new Thread(() -> {
+            try {
+                loop.run();
+            } catch (IOException ignored) {
+            }
+        }, "pair-jmh");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}